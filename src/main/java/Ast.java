@@ -0,0 +1,864 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// command lists parsed once into nodes; alias values, function bodies and loop bodies keep their parsed form and
+// are only expanded (variables, substitutions, globs) when they run, so a loop costs nothing per pass but the
+// commands it runs
+final class Ast {
+    interface Node {
+        int run() throws Exception;
+    }
+
+    // one command as typed, pipes and redirects included. It is still expanded on every run, but the words of the
+    // last expansion are kept, so a loop body that expands to the same line again isn't tokenized again, and so is
+    // the program its first word names on PATH, until PATH or the exec index changes
+    static final class Simple implements Node {
+        final String text;
+        private volatile Words words;
+        private volatile Program program;
+
+        private static final class Words {
+            final String line;
+            final List<String> words;
+
+            Words(String line, List<String> words) {
+                this.line = line;
+                this.words = words;
+            }
+        }
+
+        private static final class Program {
+            final String name, path, exe;
+            final long version;
+
+            Program(String name, String path, long version, String exe) {
+                this.name = name;
+                this.path = path;
+                this.version = version;
+                this.exe = exe;
+            }
+        }
+
+        Simple(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int run() throws Exception {
+            return Main.runSimple(text, this);
+        }
+
+        // a copy, as callers may change the list they get
+        List<String> words(String line) {
+            Words w = words;
+            if (w == null || !w.line.equals(line))
+                words = w = new Words(line, Main.tokenizeArgs(line));
+            return new ArrayList<>(w.words);
+        }
+
+        // where name is found on PATH, or null; a name with a slash depends on the working directory and is looked up
+        // every time
+        String exe(String name) {
+            if (name.contains("/"))
+                return Main.PathUtil.isOnPath(name) ? Main.PathUtil.resolveOnPath(name) : null;
+            String path = Main.env().get("PATH");
+            Main.execIndex.watch(path);
+            long version = Main.execIndex.version();
+            Program p = program;
+            if (p == null || !p.name.equals(name) || !Objects.equals(p.path, path) || p.version != version)
+                program = p = new Program(name, path, version, Main.PathUtil.resolveOnPath(name));
+            return p.exe;
+        }
+    }
+
+    // commands joined by ;, && and ||; ops.get(i) is the operator after nodes.get(i)
+    static final class Seq implements Node {
+        final List<Node> nodes;
+        final List<String> ops;
+
+        Seq(List<Node> nodes, List<String> ops) {
+            this.nodes = nodes;
+            this.ops = ops;
+        }
+
+        @Override
+        public int run() throws Exception {
+            Context ctx = Context.current();
+            int status = ctx.lastStatus;
+            String op = ";";
+            for (int i = 0; i < nodes.size(); i++) {
+                boolean run = op.equals(";") || (op.equals("&&") && status == 0) || (op.equals("||") && status != 0);
+                if (run) {
+                    status = nodes.get(i).run();
+                    ctx.lastStatus = status;
+                }
+                op = ops.get(i);
+            }
+            return status;
+        }
+    }
+
+    static final class FuncDef implements Node {
+        final String name;
+        final Node body;
+
+        FuncDef(String name, Node body) {
+            this.name = name;
+            this.body = body;
+        }
+
+        @Override
+        public int run() {
+            Main.functions().put(name, body);
+            return 0;
+        }
+    }
+
+    // for NAME [in WORDS]; do BODY; done; words are expanded and split once per loop, no words means "$@"
+    static final class For implements Node {
+        final String var;
+        final String words;
+        final Node body;
+
+        For(String var, String words, Node body) {
+            this.var = var;
+            this.words = words;
+            this.body = body;
+        }
+
+        @Override
+        public int run() throws Exception {
+            Context ctx = Context.current();
+            // "$@" keeps one item per parameter, which expanding it as text would join
+            List<String> items = words == null || words.equals("\"$@\"") || words.equals("$@")
+                    ? new ArrayList<>(ctx.positional)
+                    : Main.tokenizeArgs(new Glob(ctx.listings, ctx.cwd).expandLine(Main.expand(words)));
+            int status = 0;
+            ctx.loops++;
+            try {
+                for (String item : items) {
+                    ctx.env.set(var, item);
+                    try {
+                        status = body.run();
+                    } catch (Unwind u) {
+                        if (u.leave(ctx))
+                            break;
+                    }
+                }
+            } finally {
+                ctx.loops--;
+            }
+            return status;
+        }
+    }
+
+    // while (or until) COND; do BODY; done
+    static final class While implements Node {
+        final boolean until;
+        final Node cond;
+        final Node body;
+
+        While(boolean until, Node cond, Node body) {
+            this.until = until;
+            this.cond = cond;
+            this.body = body;
+        }
+
+        @Override
+        public int run() throws Exception {
+            Context ctx = Context.current();
+            int status = 0;
+            ctx.loops++;
+            try {
+                while (true) {
+                    try {
+                        if ((cond.run() == 0) == until)
+                            break;
+                        status = body.run();
+                    } catch (Unwind u) {
+                        if (u.leave(ctx))
+                            break;
+                    }
+                }
+            } finally {
+                ctx.loops--;
+            }
+            return status;
+        }
+    }
+
+    // if COND; then BODY; [elif COND; then BODY;]... [else BODY;] fi
+    static final class If implements Node {
+        final List<Node> conds;
+        final List<Node> bodies;
+        final Node otherwise;
+
+        If(List<Node> conds, List<Node> bodies, Node otherwise) {
+            this.conds = conds;
+            this.bodies = bodies;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        public int run() throws Exception {
+            for (int i = 0; i < conds.size(); i++)
+                if (conds.get(i).run() == 0)
+                    return bodies.get(i).run();
+            return otherwise != null ? otherwise.run() : 0;
+        }
+    }
+
+    // case WORD in PAT[|PAT]...) BODY;; ... esac; bodies.get(i) is null for an empty item
+    static final class Case implements Node {
+        final String word;
+        final List<List<String>> patterns;
+        final List<Node> bodies;
+
+        Case(String word, List<List<String>> patterns, List<Node> bodies) {
+            this.word = word;
+            this.patterns = patterns;
+            this.bodies = bodies;
+        }
+
+        @Override
+        public int run() throws Exception {
+            String value = String.join(" ", Main.tokenizeArgs(Main.expand(word)));
+            for (int i = 0; i < patterns.size(); i++) {
+                for (String pat : patterns.get(i)) {
+                    if (Glob.compile(pattern(Main.expand(pat))).matcher(value).matches()) {
+                        Node body = bodies.get(i);
+                        return body != null ? body.run() : 0;
+                    }
+                }
+            }
+            return 0;
+        }
+
+        // quotes make the characters inside them literal, as in a glob; what's left is a pattern for Glob
+        static String pattern(String expanded) {
+            StringBuilder sb = new StringBuilder();
+            boolean inS = false, inD = false;
+            for (int i = 0; i < expanded.length(); i++) {
+                char c = expanded.charAt(i);
+                if (c == '\\' && !inS && i + 1 < expanded.length()) {
+                    sb.append(c).append(expanded.charAt(++i));
+                } else if (c == '\'' && !inD) {
+                    inS = !inS;
+                } else if (c == '"' && !inS) {
+                    inD = !inD;
+                } else {
+                    if ((inS || inD) && (c == '*' || c == '?' || c == '[' || c == '\\'))
+                        sb.append('\\');
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    // break [n] and continue [n]: unwinds to the n-th enclosing loop of this context
+    static final class Control implements Node {
+        final boolean breaks;
+        final int levels;
+
+        Control(boolean breaks, int levels) {
+            this.breaks = breaks;
+            this.levels = levels;
+        }
+
+        @Override
+        public int run() {
+            String name = breaks ? "break" : "continue";
+            if (levels < 1) {
+                System.err.println(name + ": " + levels + ": loop count out of range");
+                return 1;
+            }
+            if (Context.current().loops == 0) {
+                System.err.println(name + ": only meaningful in a `for', `while', or `until' loop");
+                return 0;
+            }
+            throw new Unwind(breaks, levels);
+        }
+    }
+
+    // thrown by break and continue, caught by the loops it passes through; carries no stack trace
+    static final class Unwind extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final boolean breaks;
+        int levels;
+
+        Unwind(boolean breaks, int levels) {
+            super(null, null, false, false);
+            this.breaks = breaks;
+            this.levels = levels;
+        }
+
+        // called by the loop that caught it: true to leave that loop, false to go on with its next pass; rethrows
+        // while outer loops are still to be unwound
+        boolean leave(Context ctx) {
+            if (--levels > 0 && ctx.loops > 1)
+                throw this;
+            return breaks;
+        }
+    }
+
+    // return [n]: leaves the innermost function with n (expanded when it runs), or with the last status without one
+    static final class Return implements Node {
+        final String status;
+
+        Return(String status) {
+            this.status = status;
+        }
+
+        @Override
+        public int run() {
+            Context ctx = Context.current();
+            if (ctx.functions == 0) {
+                System.err.println("return: can only `return' from a function");
+                return ctx.lastStatus = 1;
+            }
+            int code = ctx.lastStatus;
+            if (status != null) {
+                String v = Main.expand(status).trim();
+                try {
+                    code = Integer.parseInt(v) & 0xFF;
+                } catch (NumberFormatException e) {
+                    System.err.println("return: " + v + ": numeric argument required");
+                    code = 2;
+                }
+            }
+            throw new Returned(code);
+        }
+    }
+
+    // thrown by return, caught by the function call it leaves; carries no stack trace
+    static final class Returned extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        Returned(int status) {
+            super(null, null, false, false);
+            this.status = status;
+        }
+    }
+
+    static final class Alias {
+        final String text;
+        final Node node;
+
+        Alias(String text) {
+            this.text = text;
+            this.node = parse(text);
+        }
+    }
+
+    private static final Pattern CONTROL = Pattern.compile("(break|continue)(?:\\s+(\\d+))?");
+    private static final Pattern RETURN = Pattern.compile("return(?:\\s+(\\S+))?");
+    // words that only close or continue a compound command, so they can't start one
+    private static final String[] CLOSERS = { "do", "done", "then", "elif", "else", "fi", "esac" };
+
+    private static final Pattern FUNC = Pattern.compile(
+            "(?:function\\s+)?([A-Za-z_][A-Za-z0-9_.-]*)\\s*\\(\\s*\\)\\s*\\{(?=\\s)"
+                    + "|function\\s+([A-Za-z_][A-Za-z0-9_.-]*)\\s*\\{(?=\\s)");
+
+    private Ast() {
+    }
+
+    // throws IllegalArgumentException with a bash-style message on unbalanced braces or stray tokens
+    static Node parse(String src) {
+        Parser p = new Parser(src);
+        Node n = p.list(false);
+        if (p.pos < src.length())
+            throw new IllegalArgumentException("syntax error near unexpected token `" + src.charAt(p.pos) + "'");
+        return n;
+    }
+
+    // an alias used with arguments: they go after the last command of its value, as textual expansion would
+    static Node withArgs(Node n, String args) {
+        if (args.isBlank())
+            return n;
+        if (n instanceof Simple)
+            return new Simple(((Simple) n).text + args);
+        if (n instanceof Seq) {
+            Seq seq = (Seq) n;
+            List<Node> nodes = new ArrayList<>(seq.nodes);
+            nodes.set(nodes.size() - 1, withArgs(nodes.get(nodes.size() - 1), args));
+            return new Seq(nodes, seq.ops);
+        }
+        return n;
+    }
+
+    // compact binary form of a parsed tree, used by the rc-file cache
+    static void write(Node n, DataOutputStream out) throws IOException {
+        if (n instanceof Simple) {
+            out.writeByte('S');
+            out.writeUTF(((Simple) n).text);
+        } else if (n instanceof Seq) {
+            Seq seq = (Seq) n;
+            out.writeByte('Q');
+            out.writeInt(seq.nodes.size());
+            for (int i = 0; i < seq.nodes.size(); i++) {
+                write(seq.nodes.get(i), out);
+                out.writeUTF(seq.ops.get(i));
+            }
+        } else if (n instanceof FuncDef) {
+            out.writeByte('F');
+            out.writeUTF(((FuncDef) n).name);
+            write(((FuncDef) n).body, out);
+        } else if (n instanceof For) {
+            For f = (For) n;
+            out.writeByte('L');
+            out.writeUTF(f.var);
+            out.writeBoolean(f.words != null);
+            if (f.words != null)
+                out.writeUTF(f.words);
+            write(f.body, out);
+        } else if (n instanceof While) {
+            While w = (While) n;
+            out.writeByte('W');
+            out.writeBoolean(w.until);
+            write(w.cond, out);
+            write(w.body, out);
+        } else if (n instanceof If) {
+            If f = (If) n;
+            out.writeByte('I');
+            out.writeInt(f.conds.size());
+            for (int i = 0; i < f.conds.size(); i++) {
+                write(f.conds.get(i), out);
+                write(f.bodies.get(i), out);
+            }
+            out.writeBoolean(f.otherwise != null);
+            if (f.otherwise != null)
+                write(f.otherwise, out);
+        } else if (n instanceof Case) {
+            Case c = (Case) n;
+            out.writeByte('C');
+            out.writeUTF(c.word);
+            out.writeInt(c.patterns.size());
+            for (int i = 0; i < c.patterns.size(); i++) {
+                out.writeInt(c.patterns.get(i).size());
+                for (String pat : c.patterns.get(i))
+                    out.writeUTF(pat);
+                out.writeBoolean(c.bodies.get(i) != null);
+                if (c.bodies.get(i) != null)
+                    write(c.bodies.get(i), out);
+            }
+        } else if (n instanceof Control) {
+            out.writeByte('B');
+            out.writeBoolean(((Control) n).breaks);
+            out.writeInt(((Control) n).levels);
+        } else if (n instanceof Return) {
+            out.writeByte('R');
+            out.writeBoolean(((Return) n).status != null);
+            if (((Return) n).status != null)
+                out.writeUTF(((Return) n).status);
+        } else {
+            throw new IOException("unknown node " + n.getClass().getSimpleName());
+        }
+    }
+
+    // a list length from the cache; every element takes at least a byte, so a larger one means a corrupt file
+    private static int count(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || n > in.available())
+            throw new IOException("bad length " + n);
+        return n;
+    }
+
+    static Node read(DataInputStream in) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case 'S':
+                return new Simple(in.readUTF());
+            case 'Q': {
+                int n = count(in);
+                List<Node> nodes = new ArrayList<>(n);
+                List<String> ops = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    nodes.add(read(in));
+                    ops.add(in.readUTF());
+                }
+                return new Seq(nodes, ops);
+            }
+            case 'F':
+                return new FuncDef(in.readUTF(), read(in));
+            case 'L': {
+                String var = in.readUTF();
+                String words = in.readBoolean() ? in.readUTF() : null;
+                return new For(var, words, read(in));
+            }
+            case 'W': {
+                boolean until = in.readBoolean();
+                Node cond = read(in);
+                return new While(until, cond, read(in));
+            }
+            case 'I': {
+                int n = count(in);
+                List<Node> conds = new ArrayList<>(n);
+                List<Node> bodies = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    conds.add(read(in));
+                    bodies.add(read(in));
+                }
+                return new If(conds, bodies, in.readBoolean() ? read(in) : null);
+            }
+            case 'C': {
+                String word = in.readUTF();
+                int n = count(in);
+                List<List<String>> patterns = new ArrayList<>(n);
+                List<Node> bodies = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    int k = count(in);
+                    List<String> pats = new ArrayList<>(k);
+                    for (int j = 0; j < k; j++)
+                        pats.add(in.readUTF());
+                    patterns.add(pats);
+                    bodies.add(in.readBoolean() ? read(in) : null);
+                }
+                return new Case(word, patterns, bodies);
+            }
+            case 'B':
+                return new Control(in.readBoolean(), in.readInt());
+            case 'R':
+                return new Return(in.readBoolean() ? in.readUTF() : null);
+            default:
+                throw new IOException("bad node tag " + tag);
+        }
+    }
+
+    private static final class Parser {
+        final String s;
+        int pos;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        // a list that ends at the closing '}' when braced, or before any of the reserved words in ends
+        Node list(boolean braced, String... ends) {
+            List<Node> nodes = new ArrayList<>();
+            List<String> ops = new ArrayList<>();
+            while (true) {
+                skipBlank();
+                if (pos >= s.length()) {
+                    if (braced || ends.length > 0)
+                        throw new IllegalArgumentException("syntax error: unexpected end of input, expected `"
+                                + (braced ? "}" : ends[ends.length - 1]) + "'");
+                    break;
+                }
+                if (braced && s.charAt(pos) == '}' || atAny(ends))
+                    break;
+                if (s.startsWith(";;", pos))
+                    throw new IllegalArgumentException("syntax error near unexpected token `;;'");
+                nodes.add(command());
+                ops.add(operator());
+            }
+            if (nodes.isEmpty() && ends.length > 0)
+                throw new IllegalArgumentException("syntax error near unexpected token `" + next() + "'");
+            if (nodes.size() == 1 && ops.get(0).equals(";"))
+                return nodes.get(0);
+            return new Seq(nodes, ops);
+        }
+
+        // for NAME [in WORDS] ; do LIST ; done
+        Node forLoop() {
+            skipInline();
+            String var = scan(" \t\n;");
+            if (!var.matches("[A-Za-z_][A-Za-z0-9_]*"))
+                throw new IllegalArgumentException("`" + var + "': not a valid identifier");
+            skipInline();
+            String words = null;
+            if (at("in")) {
+                pos += 2;
+                words = scan("\n;").trim();
+            }
+            separator();
+            expect("do");
+            Node body = list(false, "done");
+            expect("done");
+            return new For(var, words, body);
+        }
+
+        // while|until LIST ; do LIST ; done
+        Node whileLoop(boolean until) {
+            Node cond = list(false, "do");
+            expect("do");
+            Node body = list(false, "done");
+            expect("done");
+            return new While(until, cond, body);
+        }
+
+        // if LIST ; then LIST ; [elif LIST ; then LIST ;]... [else LIST ;] fi
+        Node ifElse() {
+            List<Node> conds = new ArrayList<>();
+            List<Node> bodies = new ArrayList<>();
+            Node otherwise = null;
+            do {
+                conds.add(list(false, "then"));
+                expect("then");
+                bodies.add(list(false, "elif", "else", "fi"));
+            } while (accept("elif"));
+            if (accept("else"))
+                otherwise = list(false, "fi");
+            expect("fi");
+            return new If(conds, bodies, otherwise);
+        }
+
+        // case WORD in [(]PAT[|PAT]...) [LIST] ;; ... esac
+        Node caseOf() {
+            skipInline();
+            String word = scan(" \t\n;");
+            if (word.isEmpty())
+                throw new IllegalArgumentException("syntax error near unexpected token `" + next() + "'");
+            skipBlank();
+            expect("in");
+            List<List<String>> patterns = new ArrayList<>();
+            List<Node> bodies = new ArrayList<>();
+            while (!accept("esac")) {
+                if (pos >= s.length())
+                    throw new IllegalArgumentException("syntax error: unexpected end of input, expected `esac'");
+                if (s.charAt(pos) == '(')
+                    pos++;
+                List<String> pats = new ArrayList<>();
+                while (true) {
+                    skipInline();
+                    String pat = scan(" \t\n;|)");
+                    skipInline();
+                    if (pat.isEmpty() || pos >= s.length() || s.charAt(pos) != '|' && s.charAt(pos) != ')')
+                        throw new IllegalArgumentException("syntax error near unexpected token `" + next() + "'");
+                    pats.add(pat);
+                    if (s.charAt(pos++) == ')')
+                        break;
+                }
+                skipBlank();
+                Node body = s.startsWith(";;", pos) || at("esac") ? null : list(false, ";;", "esac");
+                patterns.add(pats);
+                bodies.add(body);
+                skipBlank();
+                if (s.startsWith(";;", pos))
+                    pos += 2;
+                skipBlank();
+            }
+            return new Case(word, patterns, bodies);
+        }
+
+        // "break" or "continue" with an optional count; null for any other command
+        static Node control(String text) {
+            Matcher m = CONTROL.matcher(text);
+            if (!m.matches())
+                return null;
+            int levels;
+            try {
+                levels = m.group(2) == null ? 1 : Integer.parseInt(m.group(2));
+            } catch (NumberFormatException e) {
+                levels = 0;
+            }
+            return new Control(m.group(1).equals("break"), levels);
+        }
+
+        Node command() {
+            if (accept("for"))
+                return forLoop();
+            if (accept("while"))
+                return whileLoop(false);
+            if (accept("until"))
+                return whileLoop(true);
+            if (accept("if"))
+                return ifElse();
+            if (accept("case"))
+                return caseOf();
+            for (String w : CLOSERS)
+                if (at(w))
+                    throw new IllegalArgumentException("syntax error near unexpected token `" + w + "'");
+            Matcher m = FUNC.matcher(s).region(pos, s.length());
+            if (m.lookingAt()) {
+                String name = m.group(1) != null ? m.group(1) : m.group(2);
+                pos = m.end();
+                Node body = list(true);
+                pos++;
+                return new FuncDef(name, body);
+            }
+            if (s.charAt(pos) == '{' && pos + 1 < s.length() && Character.isWhitespace(s.charAt(pos + 1))) {
+                pos++;
+                Node body = list(true);
+                pos++;
+                return body;
+            }
+            int start = pos;
+            boolean inS = false, inD = false, esc = false;
+            for (; pos < s.length(); pos++) {
+                char c = s.charAt(pos);
+                if (esc) {
+                    esc = false;
+                    continue;
+                }
+                if (c == '\\' && !inS) {
+                    esc = true;
+                    continue;
+                }
+                int sub = inS ? -1 : c == '`' ? Subst.backtickEnd(s, pos)
+                        : c == '$' && pos + 1 < s.length() && s.charAt(pos + 1) == '(' ? Subst.end(s, pos)
+                        : !inD && ProcSubst.startsAt(s, pos) ? ProcSubst.end(s, pos) : -1;
+                if (sub > 0) {
+                    pos = sub;
+                    continue;
+                }
+                if (c == '\'' && !inD)
+                    inS = !inS;
+                else if (c == '"' && !inS)
+                    inD = !inD;
+                if (inS || inD)
+                    continue;
+                if (c == ';' || c == '\n' || isOp(pos, '&') || isOp(pos, '|'))
+                    break;
+                if (c == '#' && (pos == start || Character.isWhitespace(s.charAt(pos - 1)))) {
+                    String text = s.substring(start, pos).trim();
+                    skipComment();
+                    return simple(text);
+                }
+            }
+            return simple(s.substring(start, pos).trim());
+        }
+
+        static Node simple(String text) {
+            Node control = control(text);
+            if (control != null)
+                return control;
+            Matcher m = RETURN.matcher(text);
+            return m.matches() ? new Return(m.group(1)) : new Simple(text);
+        }
+
+        String operator() {
+            while (pos < s.length() && (s.charAt(pos) == ' ' || s.charAt(pos) == '\t'))
+                pos++;
+            if (pos >= s.length() || s.charAt(pos) == '}')
+                return ";";
+            char c = s.charAt(pos);
+            // ";;" ends a case item and is left for the case to take
+            if (c == ';' && s.startsWith(";;", pos))
+                return ";";
+            if (c == ';' || c == '\n') {
+                pos++;
+                return ";";
+            }
+            if (isOp(pos, '&') || isOp(pos, '|')) {
+                pos += 2;
+                return c == '&' ? "&&" : "||";
+            }
+            if (c == '#') {
+                skipComment();
+                return ";";
+            }
+            throw new IllegalArgumentException("syntax error near unexpected token `" + c + "'");
+        }
+
+        // the reserved word w where a command starts: followed by a blank, ';', ')' or the end
+        boolean at(String w) {
+            int end = pos + w.length();
+            return s.startsWith(w, pos) && (end == s.length() || Character.isWhitespace(s.charAt(end))
+                    || s.charAt(end) == ';' || s.charAt(end) == ')');
+        }
+
+        boolean atAny(String[] ends) {
+            for (String w : ends)
+                if (w.equals(";;") ? s.startsWith(";;", pos) : at(w))
+                    return true;
+            return false;
+        }
+
+        boolean accept(String w) {
+            skipBlank();
+            if (!at(w))
+                return false;
+            pos += w.length();
+            return true;
+        }
+
+        void expect(String w) {
+            skipBlank();
+            if (pos >= s.length())
+                throw new IllegalArgumentException("syntax error: unexpected end of input, expected `" + w + "'");
+            if (!accept(w))
+                throw new IllegalArgumentException("syntax error near unexpected token `" + next() + "'");
+        }
+
+        // the ';' or newline after the words of a for
+        void separator() {
+            skipInline();
+            if (pos < s.length() && (s.charAt(pos) == ';' || s.charAt(pos) == '\n'))
+                pos++;
+        }
+
+        // the word at pos, for error messages
+        String next() {
+            if (pos >= s.length())
+                return "newline";
+            int end = pos;
+            while (end < s.length() && !Character.isWhitespace(s.charAt(end)))
+                end++;
+            return s.substring(pos, Math.max(end, pos + 1));
+        }
+
+        // raw text up to the first unquoted character in stops, quotes and substitutions included
+        String scan(String stops) {
+            int start = pos;
+            boolean inS = false, inD = false, esc = false;
+            for (; pos < s.length(); pos++) {
+                char c = s.charAt(pos);
+                if (esc) {
+                    esc = false;
+                    continue;
+                }
+                if (c == '\\' && !inS) {
+                    esc = true;
+                    continue;
+                }
+                int sub = inS ? -1 : c == '`' ? Subst.backtickEnd(s, pos)
+                        : c == '$' && pos + 1 < s.length() && s.charAt(pos + 1) == '(' ? Subst.end(s, pos) : -1;
+                if (sub > 0) {
+                    pos = sub;
+                    continue;
+                }
+                if (c == '\'' && !inD)
+                    inS = !inS;
+                else if (c == '"' && !inS)
+                    inD = !inD;
+                else if (!inS && !inD && stops.indexOf(c) >= 0)
+                    break;
+            }
+            return s.substring(start, pos);
+        }
+
+        void skipInline() {
+            while (pos < s.length() && (s.charAt(pos) == ' ' || s.charAt(pos) == '\t'))
+                pos++;
+        }
+
+        boolean isOp(int i, char c) {
+            return s.charAt(i) == c && i + 1 < s.length() && s.charAt(i + 1) == c;
+        }
+
+        void skipBlank() {
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c == '#')
+                    skipComment();
+                else if (Character.isWhitespace(c))
+                    pos++;
+                else
+                    break;
+            }
+        }
+
+        void skipComment() {
+            while (pos < s.length() && s.charAt(pos) != '\n')
+                pos++;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+final class Cat {
+    static final long MAP_WINDOW = 64L << 20;
+    static final int COPY_BUFFER = 64 << 10;
+
+    private static FileChannel stdoutChannel;
+
+    // a daemon session's stdout is its socket, which transferTo can feed just as well; inside $(...) it is the
+    // capture
+    static synchronized WritableByteChannel stdout() {
+        OutputStream captured = Context.current().stdout;
+        if (captured != null)
+            return Channels.newChannel(captured);
+        Session s = Session.current();
+        if (s != null)
+            return s.channel;
+        if (stdoutChannel == null)
+            stdoutChannel = new FileOutputStream(FileDescriptor.out).getChannel();
+        return stdoutChannel;
+    }
+
+    // options (and "-" for stdin) are the system cat's business; everything else here is a file name
+    static boolean hasOptions(List<String> args) {
+        for (String a : args)
+            if (a.startsWith("-"))
+                return true;
+        return false;
+    }
+
+    static int run(List<String> files, InputStream in, OutputStream out, OutputStream err) throws IOException {
+        if (hasOptions(files)) {
+            List<String> argv = new ArrayList<>(files);
+            argv.add(0, "cat");
+            int status = Main.external(Context.current(), argv, in, out, err);
+            if (status >= 0)
+                return status;
+            err.write("cat: options are not supported without a system cat\n".getBytes());
+            err.flush();
+            return 1;
+        }
+        if (files.isEmpty()) {
+            in.transferTo(out);
+            out.flush();
+            return 0;
+        }
+        WritableByteChannel direct = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : null;
+        int rc = 0;
+        for (String name : files) {
+            try {
+                if (isStdin(name)) {
+                    in.transferTo(out);
+                    continue;
+                }
+                Path src = resolve(name);
+                if (direct != null) {
+                    toChannel(src, direct);
+                } else {
+                    toStream(src, out);
+                }
+            } catch (IOException e) {
+                err.write(("cat: " + name + ": " + reason(e) + "\n").getBytes());
+                err.flush();
+                rc = 1;
+            }
+        }
+        out.flush();
+        return rc;
+    }
+
+    // in-process, the JVM's own fd 0 is not this stage's stdin, so these names mean the stream we were given
+    static boolean isStdin(String name) {
+        return name.equals("/dev/stdin") || name.equals("/dev/fd/0") || name.equals("/proc/self/fd/0");
+    }
+
+    static int toTerminal(List<String> files) throws IOException {
+        System.out.flush();
+        int rc = 0;
+        for (String name : files) {
+            try {
+                toChannel(resolve(name), stdout());
+            } catch (IOException e) {
+                System.err.println("cat: " + name + ": " + reason(e));
+                rc = 1;
+            }
+        }
+        return rc;
+    }
+
+    static int toFile(List<String> files, Path dest, boolean append, OutputStream err) throws IOException {
+        try (FileChannel dst = FileChannel.open(dest, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+            int rc = 0;
+            for (String name : files) {
+                try {
+                    toChannel(resolve(name), dst);
+                } catch (IOException e) {
+                    // like cat, one unreadable source doesn't stop the rest
+                    err.write(("cat: " + name + ": " + reason(e) + "\n").getBytes());
+                    err.flush();
+                    rc = 1;
+                }
+            }
+            return rc;
+        }
+    }
+
+    // the text cat prints; NIO's exceptions carry the path rather than the errno's message
+    static String reason(IOException e) {
+        if (e instanceof NoSuchFileException)
+            return "No such file or directory";
+        if (e instanceof AccessDeniedException)
+            return "Permission denied";
+        // the others carry the path in their message as well; the caller already names the file
+        if (e instanceof FileSystemException && ((FileSystemException) e).getReason() != null)
+            return ((FileSystemException) e).getReason();
+        return e.getMessage();
+    }
+
+    static Path resolve(String name) {
+        return Context.current().resolve(name);
+    }
+
+    // a directory opens fine for reading, then fails with whatever errno the copy path hits
+    static FileChannel open(Path src) throws IOException {
+        if (Files.isDirectory(src))
+            throw new IOException("Is a directory");
+        return FileChannel.open(src, StandardOpenOption.READ);
+    }
+
+    // sendfile/splice when the destination is a file, pipe or tty
+    static void toChannel(Path src, WritableByteChannel dst) throws IOException {
+        try (FileChannel fc = open(src)) {
+            long size = fc.size();
+            long pos = 0;
+            if (size == 0) {
+                // procfs, FIFOs and pipes report zero length and can't be read at a position
+                ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER);
+                while (fc.read(buf) >= 0) {
+                    buf.flip();
+                    while (buf.hasRemaining())
+                        dst.write(buf);
+                    buf.clear();
+                }
+                return;
+            }
+            while (pos < size) {
+                long n = fc.transferTo(pos, size - pos, dst);
+                if (n <= 0)
+                    break;
+                pos += n;
+            }
+        }
+    }
+
+    static void toStream(Path src, OutputStream out) throws IOException {
+        try (FileChannel fc = open(src)) {
+            long size = fc.size();
+            if (size == 0) {
+                ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER);
+                int n;
+                while ((n = fc.read(buf)) >= 0) {
+                    out.write(buf.array(), 0, n);
+                    buf.clear();
+                }
+                return;
+            }
+            WritableByteChannel dst = Channels.newChannel(out);
+            for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+                MappedByteBuffer window = fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos));
+                while (window.hasRemaining())
+                    dst.write(window);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// everything a command can read or change about the shell it runs in: working directory, variables, last exit
+// status and positional parameters. The JVM's user.dir is never touched, so daemon sessions and substitutions each
+// run against their own context, side by side. Threads started while running a command (pipeline stages, pumps)
+// inherit the context of the thread that started them
+final class Context {
+    private static final InheritableThreadLocal<Context> current = new InheritableThreadLocal<>();
+    private static final Context root = new Context(Path.of(System.getProperty("user.dir")),
+            new Env(System.getenv()));
+
+    volatile Path cwd;
+    final Env env;
+    volatile int lastStatus;
+    volatile List<String> positional = List.of();
+    // aliases being expanded on this context, so an alias that names itself stops after one round
+    final Set<String> activeAliases = new HashSet<>();
+    // for, while and until loops running on this context, for break and continue
+    int loops;
+    // shell functions running on this context, for return and the nesting limit
+    int functions;
+    // directory listings shared by the globs of one command list
+    DirCache listings = new DirCache();
+    // <(...) and >(...) lists started while expanding the current command
+    final List<ProcSubst.Job> procSubsts = new ArrayList<>();
+    // coprocesses by name; a subshell shares its parent's, as it would share inherited file descriptors
+    Map<String, Coproc> coprocs = new ConcurrentHashMap<>();
+    // where System.out goes for this context's threads; null for the terminal or the session's socket
+    volatile OutputStream stdout;
+    // what its commands read as stdin, e.g. the FIFO of a >(...) list; null for EOF
+    volatile InputStream stdin;
+    // set while time measures a command in daemon mode; the processes it starts report here
+    volatile Timing.Meter meter;
+
+    Context(Path cwd, Env env) {
+        this.cwd = cwd.toAbsolutePath().normalize();
+        this.env = env;
+    }
+
+    // the context of the calling thread; the interactive shell's own when nothing else was attached
+    static Context current() {
+        Context c = current.get();
+        return c != null ? c : root;
+    }
+
+    void attach() {
+        current.set(this);
+    }
+
+    static void detach() {
+        current.remove();
+    }
+
+    // a subshell's copy: changes made inside it are dropped with it
+    Context fork() {
+        Context c = new Context(cwd, env.copy());
+        c.lastStatus = lastStatus;
+        c.positional = positional;
+        c.coprocs = coprocs;
+        c.stdout = stdout;
+        c.stdin = stdin;
+        c.meter = meter;
+        return c;
+    }
+
+    // relative names are taken from this context's cwd, not the JVM's
+    Path resolve(String name) {
+        return cwd.resolve(name).normalize();
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// coproc NAME cmd [arg...] starts cmd once and keeps its stdin and stdout open under NAME, so later commands talk
+// to the same warm process instead of spawning a new one each time:
+//   coproc -w NAME [word...]   words as one line (or this command's stdin) to its stdin
+//   coproc -r NAME [count]     count lines (1 by default) of its output
+//   coproc -q NAME [word...]   -w then -r 1 as one exchange, so concurrent users never get each other's replies
+//   coproc -c NAME             closes its stdin, copies out what it still writes and returns its exit status
+//   coproc                     lists the running ones
+// The worker's stderr goes to the shell's. Handles belong to the shell's context and are shared by subshells
+final class Coproc {
+    final String name;
+    final List<String> argv;
+    private final ExternalProc proc;
+    private final OutputStream requests;
+    // kept across commands, so bytes read ahead past a reply wait for the next -r
+    private final InputStream replies;
+
+    private Coproc(String name, List<String> argv, ExternalProc proc) {
+        this.name = name;
+        this.argv = argv;
+        this.proc = proc;
+        this.requests = proc.stdin();
+        this.replies = new BufferedInputStream(proc.stdout());
+    }
+
+    static int run(Context ctx, List<String> args, InputStream in, OutputStream out, OutputStream err)
+            throws IOException {
+        if (args.isEmpty()) {
+            for (Coproc c : ctx.coprocs.values())
+                out.write((c.name + "\t" + String.join(" ", c.argv) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return 0;
+        }
+        String op = args.get(0);
+        if (!op.startsWith("-"))
+            return start(ctx, args, err);
+        if (args.size() < 2 || !op.equals("-w") && !op.equals("-r") && !op.equals("-q") && !op.equals("-c"))
+            return fail(err, "usage: coproc NAME cmd [arg...] | coproc -w|-r|-q|-c NAME [...]");
+        String name = args.get(1);
+        Coproc c = ctx.coprocs.get(name);
+        if (c == null)
+            return fail(err, "coproc: " + name + ": no such coprocess");
+        List<String> rest = args.subList(2, args.size());
+        try {
+            switch (op) {
+                case "-w":
+                    synchronized (c.requests) {
+                        c.send(rest, in);
+                    }
+                    return 0;
+                case "-r":
+                    int count;
+                    try {
+                        count = rest.isEmpty() ? 1 : Integer.parseInt(rest.get(0));
+                    } catch (NumberFormatException e) {
+                        return fail(err, "coproc: " + rest.get(0) + ": invalid line count");
+                    }
+                    synchronized (c.replies) {
+                        return c.receive(count, out) ? 0 : 1;
+                    }
+                case "-q":
+                    synchronized (c.requests) {
+                        synchronized (c.replies) {
+                            c.send(rest, in);
+                            return c.receive(1, out) ? 0 : 1;
+                        }
+                    }
+                default:
+                    ctx.coprocs.remove(name, c);
+                    Main.IO.closeQuietly(c.requests);
+                    synchronized (c.replies) {
+                        c.replies.transferTo(out);
+                        out.flush();
+                    }
+                    c.replies.close();
+                    try {
+                        return c.proc.waitFor();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return 130;
+                    }
+            }
+        } catch (IOException e) {
+            // the worker went away; its handle stays listed until -c collects the status
+            return fail(err, "coproc: " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static int start(Context ctx, List<String> args, OutputStream err) throws IOException {
+        String name = args.get(0);
+        if (!name.matches("[A-Za-z_][A-Za-z0-9_]*"))
+            return fail(err, "coproc: " + name + ": not a valid name");
+        if (args.size() < 2)
+            return fail(err, "coproc: " + name + ": missing command");
+        if (ctx.coprocs.containsKey(name))
+            return fail(err, "coproc: " + name + ": already running");
+        List<String> argv = new ArrayList<>(args.subList(1, args.size()));
+        ExternalProc proc = new ExternalProc(argv, ctx);
+        try {
+            proc.start();
+        } catch (IOException e) {
+            return fail(err, "coproc: " + argv.get(0) + ": not found");
+        }
+        Main.pump(proc.stderr(), System.err, false);
+        ctx.coprocs.put(name, new Coproc(name, argv, proc));
+        return 0;
+    }
+
+    private void send(List<String> words, InputStream in) throws IOException {
+        if (words.isEmpty())
+            in.transferTo(requests);
+        else
+            requests.write((String.join(" ", words) + "\n").getBytes(StandardCharsets.UTF_8));
+        requests.flush();
+    }
+
+    // false when the worker's output ended first. Each line is collected and written whole, as out may be a pipe
+    // or socket where every write costs a wakeup
+    private boolean receive(int count, OutputStream out) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            int b;
+            while ((b = replies.read()) != -1 && b != '\n')
+                line.write(b);
+            if (b == -1) {
+                line.writeTo(out);
+                out.flush();
+                return false;
+            }
+            line.write('\n');
+            line.writeTo(out);
+            line.reset();
+        }
+        out.flush();
+        return true;
+    }
+
+    // EOF on its stdin is how a worker is told to finish; closing its stdout too stops it from blocking on us
+    private void close() {
+        Main.IO.closeQuietly(requests);
+        Main.IO.closeQuietly(replies);
+    }
+
+    // when a daemon session ends its workers end with it, as a terminal's jobs do on hangup
+    static void closeAll(Context ctx) {
+        for (Map.Entry<String, Coproc> e : ctx.coprocs.entrySet()) {
+            if (ctx.coprocs.remove(e.getKey(), e.getValue())) {
+                e.getValue().close();
+                e.getValue().proc.destroy();
+            }
+        }
+    }
+
+    private static int fail(OutputStream err, String msg) throws IOException {
+        err.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+        err.flush();
+        return 1;
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// java Main --daemon [socket]: one warm JVM serving sessions over a Unix domain socket; the PATH index, listing
+// and pattern caches, aliases, functions and history are shared, each session has its own cwd and variables
+final class Daemon {
+    private static final AtomicInteger sessions = new AtomicInteger();
+
+    private Daemon() {
+    }
+
+    static Path socketPath() {
+        String explicit = System.getenv("SHELL_SOCKET");
+        if (explicit != null && !explicit.isEmpty())
+            return Path.of(explicit);
+        String runtime = System.getenv("XDG_RUNTIME_DIR");
+        if (runtime != null && !runtime.isEmpty())
+            return Path.of(runtime, "shell.sock");
+        return Path.of(System.getProperty("java.io.tmpdir"), "shell-" + System.getProperty("user.name") + ".sock");
+    }
+
+    static void serve(Path socket) throws IOException {
+        System.setOut(new PrintStream(new Session.Routed(new FileOutputStream(FileDescriptor.out), true), true,
+                StandardCharsets.UTF_8));
+        System.setErr(new PrintStream(new Session.Routed(new FileOutputStream(FileDescriptor.err), false), true,
+                StandardCharsets.UTF_8));
+        Files.deleteIfExists(socket);
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+        socket.toFile().deleteOnExit();
+        // warm the PATH index so the first session's prompt doesn't wait for it
+        Main.addToTrie(new Trie());
+        System.err.println("shell daemon listening on " + socket);
+        while (true) {
+            SocketChannel ch = server.accept();
+            Thread t = new Thread(() -> session(ch), "session-" + sessions.incrementAndGet());
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // the client sends its cwd on the first line, then NAME=value lines and an empty line, then raw keys
+    static void session(SocketChannel ch) {
+        try (ch; KeyReader in = new KeyReader(new Session.Keys(Session.input(ch)))) {
+            String cwd = line(in);
+            Map<String, String> env = new HashMap<>();
+            for (String l = line(in); l != null && !l.isEmpty(); l = line(in)) {
+                int eq = l.indexOf('=');
+                if (eq > 0)
+                    env.put(l.substring(0, eq), l.substring(eq + 1));
+            }
+            if (cwd == null)
+                return;
+            Session s = new Session(ch, cwd, env);
+            s.attach();
+            try {
+                Rc.run();
+                Main.ANSI.prompt();
+                Main.repl(in);
+            } finally {
+                Coproc.closeAll(s.context);
+            }
+        } catch (Session.Exit e) {
+            // the session typed exit
+        } catch (Exception e) {
+            if (ch.isOpen())
+                System.err.println("session: " + e);
+        }
+    }
+
+    static String line(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n')
+            bytes.write(b);
+        if (b == -1 && bytes.size() == 0)
+            return null;
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+}
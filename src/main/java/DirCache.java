@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+final class DirCache {
+    static final class Listing {
+        final Path dir;
+        final FileTime mtime;
+        final String[] names;
+        // 0 = not checked yet, 1 = directory, 2 = anything else
+        private final byte[] kinds;
+
+        Listing(Path dir, FileTime mtime, String[] names) {
+            this.dir = dir;
+            this.mtime = mtime;
+            this.names = names;
+            this.kinds = new byte[names.length];
+        }
+
+        boolean isDir(int i) {
+            if (kinds[i] == 0)
+                kinds[i] = (byte) (Files.isDirectory(dir.resolve(names[i])) ? 1 : 2);
+            return kinds[i] == 1;
+        }
+
+        // names are sorted, so a prefix occupies one contiguous run starting here
+        int firstWithPrefix(String prefix) {
+            int i = Arrays.binarySearch(names, prefix);
+            return i >= 0 ? i : -i - 1;
+        }
+    }
+
+    // least recently used listings go first, so a long session that visits many directories stays bounded
+    static final int MAX_DIRS = 256;
+
+    private final Map<Path, Listing> cache = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+            return size() > MAX_DIRS;
+        }
+    };
+
+    synchronized Listing list(Path dir) {
+        FileTime mtime;
+        try {
+            mtime = Files.readAttributes(dir, BasicFileAttributes.class).lastModifiedTime();
+        } catch (IOException e) {
+            cache.remove(dir);
+            return null;
+        }
+        Listing l = cache.get(dir);
+        if (l != null && l.mtime.equals(mtime)) {
+            Metrics.listingHits.increment();
+            return l;
+        }
+        Metrics.listingMisses.increment();
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds)
+                names.add(p.getFileName().toString());
+        } catch (IOException e) {
+            return null;
+        }
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted);
+        l = new Listing(dir, mtime, sorted);
+        cache.put(dir, l);
+        return l;
+    }
+}
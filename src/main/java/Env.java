@@ -0,0 +1,120 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+final class Env {
+    private final Map<String, String> base;
+    private final Map<String, String> locals = new HashMap<>();
+    private final Set<String> marked = new HashSet<>();
+    // exported changes relative to base, a null value marks a removed variable; replaced on write, never mutated
+    private volatile Map<String, String> overlay = Collections.emptyMap();
+
+    Env(Map<String, String> base) {
+        this.base = base;
+    }
+
+    // an independent copy with the same locals and exports, for subshells
+    synchronized Env copy() {
+        Env e = new Env(base);
+        e.locals.putAll(locals);
+        e.marked.addAll(marked);
+        e.overlay = overlay;
+        return e;
+    }
+
+    static boolean isName(String s) {
+        if (s.isEmpty() || !isNameStart(s.charAt(0)))
+            return false;
+        for (int i = 1; i < s.length(); i++)
+            if (!isNamePart(s.charAt(i)))
+                return false;
+        return true;
+    }
+
+    static boolean isNameStart(char c) {
+        return c == '_' || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    static boolean isNamePart(char c) {
+        return isNameStart(c) || (c >= '0' && c <= '9');
+    }
+
+    synchronized String get(String name) {
+        String v = locals.get(name);
+        return v != null ? v : exported(name);
+    }
+
+    private String exported(String name) {
+        Map<String, String> o = overlay;
+        return o.containsKey(name) ? o.get(name) : base.get(name);
+    }
+
+    synchronized void set(String name, String value) {
+        if (marked.remove(name) || (!locals.containsKey(name) && exported(name) != null))
+            put(name, value);
+        else
+            locals.put(name, value);
+    }
+
+    synchronized void export(String name, String value) {
+        String v = value != null ? value : locals.get(name);
+        locals.remove(name);
+        if (v == null)
+            v = exported(name);
+        if (v == null) {
+            marked.add(name);
+            return;
+        }
+        put(name, v);
+    }
+
+    synchronized void unset(String name) {
+        locals.remove(name);
+        marked.remove(name);
+        if (exported(name) != null)
+            put(name, null);
+    }
+
+    private void put(String name, String value) {
+        Map<String, String> next = new HashMap<>(overlay);
+        if (value == null ? !base.containsKey(name) : value.equals(base.get(name)))
+            next.remove(name);
+        else
+            next.put(name, value);
+        overlay = Collections.unmodifiableMap(next);
+    }
+
+    Map<String, String> overlay() {
+        return overlay;
+    }
+
+    // only the delta is written; with no exported changes the child inherits the JVM environment as is. The first
+    // pb.environment() call copies the JVM's environment, so call this only for a builder that is about to start
+    void applyTo(ProcessBuilder pb) {
+        Map<String, String> o = overlay;
+        if (o.isEmpty())
+            return;
+        Map<String, String> target = pb.environment();
+        for (Map.Entry<String, String> e : o.entrySet()) {
+            if (e.getValue() == null)
+                target.remove(e.getKey());
+            else
+                target.put(e.getKey(), e.getValue());
+        }
+    }
+
+    synchronized SortedMap<String, String> exportedVars() {
+        TreeMap<String, String> all = new TreeMap<>(base);
+        for (Map.Entry<String, String> e : overlay.entrySet()) {
+            if (e.getValue() == null)
+                all.remove(e.getKey());
+            else
+                all.put(e.getKey(), e.getValue());
+        }
+        return all;
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// executable names per PATH directory, scanned on background threads so a hung mount never blocks the prompt
+final class ExecIndex {
+    static final long DIR_TIMEOUT_MS = 150;
+    static final long DEADLINE_MS = 300;
+    static final long RECHECK_MS = 1000;
+
+    private static final class DirState {
+        volatile List<String> names;
+        volatile long mtime = -1;
+        volatile long checkedAt;
+        volatile Future<?> pending;
+    }
+
+    private final ConcurrentHashMap<String, DirState> dirs = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    // pool threads are started from whichever session first needs one and outlive it, so they must not inherit
+    // its Context or Session; tasks get PATH and cwd from their caller instead
+    private final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(null, r, "exec-index", 0, false);
+        t.setDaemon(true);
+        return t;
+    });
+
+    long version() {
+        return version.get();
+    }
+
+    <T> Future<T> submit(Callable<T> task) {
+        return pool.submit(task);
+    }
+
+    // starts rescans of path's directories that are due, without waiting for them, so version() moves soon after
+    // one of them changes
+    void watch(String path) {
+        if (path == null || path.isEmpty())
+            return;
+        for (String dir : path.split(File.pathSeparator))
+            refresh(dir);
+    }
+
+    // cached names per directory; stale or missing entries are refreshed, waiting at most until the deadline
+    List<List<String>> snapshot(String path) {
+        List<List<String>> out = new ArrayList<>();
+        if (path == null || path.isEmpty())
+            return out;
+        String[] entries = path.split(File.pathSeparator);
+        List<DirState> states = new ArrayList<>();
+        for (String dir : entries)
+            states.add(refresh(dir));
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(DEADLINE_MS);
+        long perDir = TimeUnit.MILLISECONDS.toNanos(DIR_TIMEOUT_MS);
+        for (DirState st : states) {
+            Future<?> f = st.pending;
+            if (f != null && st.names == null) {
+                long wait = Math.min(deadline, start + perDir) - System.nanoTime();
+                try {
+                    if (wait > 0)
+                        f.get(wait, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException | ExecutionException e) {
+                    // slow or unreadable: skipped this time, the scan keeps going in the background
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            List<String> names = st.names;
+            if (names != null)
+                out.add(names);
+        }
+        return out;
+    }
+
+    private DirState refresh(String dir) {
+        DirState st = dirs.computeIfAbsent(dir, k -> new DirState());
+        long now = System.currentTimeMillis();
+        synchronized (st) {
+            if (st.pending == null && (st.names == null || now - st.checkedAt > RECHECK_MS)) {
+                st.checkedAt = now;
+                st.pending = pool.submit(() -> scan(dir, st));
+            }
+        }
+        return st;
+    }
+
+    private void scan(String dir, DirState st) {
+        try {
+            File d = new File(dir);
+            long mtime = d.lastModified();
+            if (st.names != null && mtime == st.mtime)
+                return;
+            Metrics.pathScans.increment();
+            File[] matches = d.isDirectory() ? d.listFiles(f -> f.isFile() && f.canExecute()) : null;
+            List<String> names = new ArrayList<>();
+            if (matches != null)
+                for (File f : matches)
+                    names.add(f.getName());
+            st.names = Collections.unmodifiableList(names);
+            st.mtime = mtime;
+            version.incrementAndGet();
+        } finally {
+            synchronized (st) {
+                st.pending = null;
+            }
+        }
+    }
+
+    // waits for a completion task, giving up when the deadline passes or another key is already waiting
+    static <T> T await(Future<T> f, InputStream in, long timeoutMs) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (true) {
+            try {
+                return f.get(5, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (in.available() > 0 || System.nanoTime() > deadline) {
+                    f.cancel(true);
+                    return null;
+                }
+            } catch (ExecutionException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+}
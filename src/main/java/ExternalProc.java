@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Optional;
+
+final class ExternalProc implements Proc {
+    private final ProcessBuilder pb;
+    private final Env env;
+    private Process p;
+    private SpawnHelper.Child child;
+    private long startedAt;
+    private volatile long endedAt;
+    private volatile long[] cpu;
+
+    ExternalProc(List<String> argv, Context ctx) {
+        this.pb = new ProcessBuilder(argv).directory(ctx.cwd.toFile());
+        this.env = ctx.env;
+    }
+
+    // SHELL_LAUNCH=helper routes spawns through SpawnHelper; posix_spawn/fork/vfork pick the JDK launch
+    // mechanism, which the JVM reads once, so those only take effect when set before the shell starts
+    static boolean useHelper(Env env) {
+        return env != null && "helper".equalsIgnoreCase(env.get("SHELL_LAUNCH"));
+    }
+
+    static void selectLaunchMechanism(String strategy) {
+        if (strategy == null)
+            return;
+        String s = strategy.toUpperCase();
+        if (s.equals("POSIX_SPAWN") || s.equals("FORK") || s.equals("VFORK"))
+            System.setProperty("jdk.lang.Process.launchMechanism", s);
+    }
+
+    @Override
+    public OutputStream stdin() {
+        return child != null ? child.stdin : p.getOutputStream();
+    }
+
+    @Override
+    public InputStream stdout() {
+        return child != null ? child.stdout : p.getInputStream();
+    }
+
+    @Override
+    public InputStream stderr() {
+        return child != null ? child.stderr : p.getErrorStream();
+    }
+
+    @Override
+    public void start() throws IOException {
+        startedAt = System.nanoTime();
+        if (useHelper(env) && SpawnHelper.canLaunch(pb.command())) {
+            child = SpawnHelper.get().spawn(pb.command(), pb.directory(), env.overlay());
+            Metrics.recordSpawn(System.nanoTime() - startedAt);
+            child.status.thenRun(() -> endedAt = System.nanoTime());
+            return;
+        }
+        env.applyTo(pb);
+        p = Metrics.start(pb);
+        p.onExit().thenRun(() -> endedAt = System.nanoTime());
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        return child != null ? child.waitFor() : p.waitFor();
+    }
+
+    @Override
+    public long elapsedNanos() {
+        return endedAt == 0 ? -1 : endedAt - startedAt;
+    }
+
+    @Override
+    public long[] cpuNanos() {
+        return cpu;
+    }
+
+    // SIGTERM; children of the spawn helper can't be signalled from here and are left to their EOF
+    void destroy() {
+        if (p != null)
+            p.destroy();
+    }
+
+    // the kernel forgets a child's times once it is reaped, so keep the last reading taken while it ran
+    @Override
+    public void sample() {
+        if (p == null || !p.isAlive())
+            return;
+        long[] c = Timing.procCpu(p.pid());
+        if (c == null) {
+            Optional<java.time.Duration> total = p.info().totalCpuDuration();
+            if (total.isPresent())
+                c = new long[] { total.get().toNanos(), 0 };
+        }
+        if (c != null)
+            cpu = c;
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// one producer copied to several consumers: every chunk read is handed to all of them by reference and goes back
+// to a fixed pool once the last one has written it, so memory stays at maxChunks * CHUNK however far the consumers
+// fall behind, and the slowest consumer sets the producer's pace
+final class FanOut {
+    static final int CHUNK = 64 * 1024;
+    static final int DEFAULT_CHUNKS = 16;
+
+    private static final Chunk EOF = new Chunk(0);
+
+    static final class Chunk {
+        final byte[] data;
+        int len;
+        final AtomicInteger refs = new AtomicInteger();
+
+        Chunk(int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    private final class Consumer extends Thread {
+        final OutputStream out;
+        final boolean close;
+        // never holds more than the pool, so it needs no bound of its own
+        final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        IOException error;
+
+        Consumer(OutputStream out, boolean close, String name) {
+            super(name);
+            this.out = out;
+            this.close = close;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Chunk c = queue.take();
+                    if (c == EOF)
+                        break;
+                    // a consumer that went away (closed pipe, full disk) keeps releasing so the others carry on
+                    if (error == null) {
+                        try {
+                            out.write(c.data, 0, c.len);
+                            out.flush();
+                        } catch (IOException e) {
+                            error = e;
+                        }
+                    }
+                    release(c);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (close)
+                    Main.IO.closeQuietly(out);
+            }
+        }
+    }
+
+    // tee [-a] file...: stdin to stdout and every file through one FanOut; other options go to the system tee
+    static int tee(Context ctx, List<String> args, InputStream in, OutputStream out, OutputStream err)
+            throws IOException {
+        boolean append = false;
+        List<String> names = new ArrayList<>();
+        boolean options = true;
+        for (String a : args) {
+            if (options && a.equals("--")) {
+                options = false;
+            } else if (options && (a.equals("-a") || a.equals("--append"))) {
+                append = true;
+            } else if (options && a.startsWith("-") && a.length() > 1) {
+                List<String> argv = new ArrayList<>(args);
+                argv.add(0, "tee");
+                int status = Main.external(ctx, argv, in, out, err);
+                if (status >= 0)
+                    return status;
+                err.write(("tee: unrecognized option '" + a + "'\n").getBytes());
+                err.flush();
+                return 1;
+            } else {
+                names.add(a);
+            }
+        }
+        FanOut fan = new FanOut(DEFAULT_CHUNKS);
+        fan.add(out, false);
+        List<String> opened = new ArrayList<>();
+        int rc = 0;
+        for (String name : names) {
+            try {
+                fan.add(Files.newOutputStream(ctx.resolve(name), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING), true);
+                opened.add(name);
+            } catch (IOException e) {
+                err.write(("tee: " + name + ": " + Cat.reason(e) + "\n").getBytes());
+                rc = 1;
+            }
+        }
+        List<IOException> errors;
+        try {
+            errors = fan.copy(in);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 130;
+        }
+        for (int i = 1; i <= opened.size(); i++) {
+            if (errors.get(i) != null) {
+                err.write(("tee: " + opened.get(i - 1) + ": " + Cat.reason(errors.get(i)) + "\n").getBytes());
+                rc = 1;
+            }
+        }
+        out.flush();
+        err.flush();
+        return rc;
+    }
+
+    private final int maxChunks;
+    private final BlockingQueue<Chunk> free;
+    private final List<Consumer> consumers = new ArrayList<>();
+    private int allocated;
+
+    FanOut(int maxChunks) {
+        this.maxChunks = Math.max(1, maxChunks);
+        this.free = new ArrayBlockingQueue<>(this.maxChunks);
+    }
+
+    // close: the consumer's stream is closed at end of input (files, pipes to other stages)
+    void add(OutputStream out, boolean close) {
+        consumers.add(new Consumer(out, close, "fanout-" + consumers.size()));
+    }
+
+    // copies in to every consumer and waits for them to drain; returns the consumers' write errors, in the order
+    // they were added, null for the ones that took everything
+    List<IOException> copy(InputStream in) throws IOException, InterruptedException {
+        for (Consumer c : consumers)
+            c.start();
+        long total = 0;
+        try {
+            while (true) {
+                Chunk c = take();
+                int n = in.read(c.data);
+                if (n == -1) {
+                    free.add(c);
+                    break;
+                }
+                c.len = n;
+                total += n;
+                c.refs.set(consumers.size());
+                for (Consumer k : consumers)
+                    k.queue.add(c);
+            }
+        } finally {
+            for (Consumer k : consumers)
+                k.queue.add(EOF);
+            for (Consumer k : consumers)
+                k.join();
+            Metrics.bytesPumped.add(total);
+        }
+        List<IOException> errors = new ArrayList<>();
+        for (Consumer k : consumers)
+            errors.add(k.error);
+        return errors;
+    }
+
+    // chunks are allocated on demand up to the limit, so short streams never pay for the whole pool
+    private Chunk take() throws InterruptedException {
+        Chunk c = free.poll();
+        if (c != null)
+            return c;
+        if (allocated < maxChunks) {
+            allocated++;
+            return new Chunk(CHUNK);
+        }
+        Metrics.fanOutStalls.increment();
+        return free.take();
+    }
+
+    private void release(Chunk c) {
+        if (c.refs.decrementAndGet() == 0)
+            free.add(c);
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+
+// find [path...] [-name glob] [-iname glob] [-type f|d|l] [-mindepth n] [-maxdepth n]: every directory is one
+// fork/join task that lists it with one stat per entry (links are not followed) and forks a task per
+// subdirectory. A task writes its directory's matches as one block as soon as it has them, so output streams while
+// the walk goes on; the order between directories is whichever finishes first. Any other predicate or operator
+// runs the system's find with the same arguments instead
+final class Find {
+    // directory reads block on the disk, so the walk gets more threads than there are cores. A worker inherits the
+    // session of the find that started it but serves every session after that, so it drops it; out and err are
+    // resolved on the caller
+    private static final ForkJoinPool pool = new ForkJoinPool(Math.max(4, 2 * Runtime.getRuntime()
+            .availableProcessors()), p -> new ForkJoinWorkerThread(p) {
+                @Override
+                protected void onStart() {
+                    super.onStart();
+                    Session.detach();
+                }
+            }, null, false);
+
+    private final Pattern name;
+    private final char type;
+    private final int minDepth, maxDepth;
+    private final OutputStream out;
+    private final OutputStream err;
+    private volatile boolean failed, outputGone;
+
+    private Find(Pattern name, char type, int minDepth, int maxDepth, OutputStream out, OutputStream err) {
+        this.name = name;
+        this.type = type;
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+        this.out = out;
+        this.err = err;
+    }
+
+    private final class Walk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final transient Path dir;
+        final String shown;
+        final int depth;
+
+        Walk(Path dir, String shown, int depth) {
+            this.dir = dir;
+            this.shown = shown;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            List<Walk> subdirs = new ArrayList<>();
+            ByteArrayOutputStream found = null;
+            String prefix = shown.endsWith("/") ? shown : shown + "/";
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (outputGone)
+                        return;
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        // removed since the listing
+                        continue;
+                    }
+                    String base = entry.getFileName().toString();
+                    if (matches(base, attrs, depth + 1)) {
+                        if (found == null)
+                            found = new ByteArrayOutputStream();
+                        line(found, prefix + base);
+                    }
+                    if (attrs.isDirectory() && depth + 1 < maxDepth)
+                        subdirs.add(new Walk(entry, prefix + base, depth + 1));
+                }
+            } catch (IOException e) {
+                report(shown, e);
+            }
+            emit(found);
+            invokeAll(subdirs);
+        }
+    }
+
+    static int run(Context ctx, List<String> args, OutputStream out, OutputStream err) throws IOException {
+        List<String> roots = new ArrayList<>();
+        Pattern name = null;
+        char type = 0;
+        int minDepth = 0, maxDepth = Integer.MAX_VALUE;
+        for (int i = 0; i < args.size(); i++) {
+            String a = args.get(i);
+            if (a.equals("!") || a.equals("(") || a.equals(")") || a.equals(","))
+                return external(ctx, args, out, err, "unknown predicate `" + a + "'");
+            if (!a.startsWith("-") || a.equals("-")) {
+                if (name != null || type != 0 || minDepth != 0 || maxDepth != Integer.MAX_VALUE)
+                    return usage(err, "paths must precede expression: " + a);
+                roots.add(a);
+                continue;
+            }
+            if (!a.equals("-name") && !a.equals("-iname") && !a.equals("-type") && !a.equals("-mindepth")
+                    && !a.equals("-maxdepth"))
+                return external(ctx, args, out, err, "unknown predicate `" + a + "'");
+            if (i + 1 == args.size())
+                return usage(err, "missing argument to `" + a + "'");
+            String v = args.get(++i);
+            switch (a) {
+                case "-name":
+                    name = Glob.compile(v);
+                    break;
+                case "-iname":
+                    name = Pattern.compile(Glob.toRegex(v), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+                    break;
+                case "-type":
+                    if (!v.equals("f") && !v.equals("d") && !v.equals("l"))
+                        return external(ctx, args, out, err, "Unknown argument to -type: " + v);
+                    type = v.charAt(0);
+                    break;
+                default:
+                    int n;
+                    try {
+                        n = Integer.parseInt(v);
+                    } catch (NumberFormatException e) {
+                        n = -1;
+                    }
+                    if (n < 0)
+                        return usage(err, "Expected a positive decimal integer argument to " + a + ", but got `"
+                                + v + "'");
+                    if (a.equals("-mindepth"))
+                        minDepth = n;
+                    else
+                        maxDepth = n;
+                    break;
+            }
+        }
+        if (roots.isEmpty())
+            roots.add(".");
+
+        Find find = new Find(name, type, minDepth, maxDepth, Session.resolve(out), Session.resolve(err));
+        for (String root : roots) {
+            Path p = ctx.resolve(root);
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                find.report(root, e);
+                continue;
+            }
+            ByteArrayOutputStream found = new ByteArrayOutputStream();
+            if (find.matches(baseName(root), attrs, 0))
+                line(found, root);
+            find.emit(found);
+            if (attrs.isDirectory() && maxDepth > 0)
+                pool.invoke(find.new Walk(p, root, 0));
+            if (find.outputGone)
+                return 141;
+        }
+        out.flush();
+        err.flush();
+        return find.failed ? 1 : 0;
+    }
+
+    private boolean matches(String base, BasicFileAttributes attrs, int depth) {
+        if (depth < minDepth)
+            return false;
+        if (type == 'f' && !attrs.isRegularFile() || type == 'd' && !attrs.isDirectory()
+                || type == 'l' && !attrs.isSymbolicLink())
+            return false;
+        if (name == null)
+            return true;
+        return name.matcher(base).matches();
+    }
+
+    // a start path is matched on its last component as typed, so "." and "dir/" match the way find matches them
+    private static String baseName(String root) {
+        String s = root;
+        while (s.length() > 1 && s.endsWith("/"))
+            s = s.substring(0, s.length() - 1);
+        int slash = s.lastIndexOf('/');
+        return slash < 0 || s.length() == 1 ? s : s.substring(slash + 1);
+    }
+
+    private static void line(ByteArrayOutputStream found, String path) {
+        byte[] b = (path + "\n").getBytes(StandardCharsets.UTF_8);
+        found.write(b, 0, b.length);
+    }
+
+    // one directory's matches at a time, so lines from parallel tasks never interleave
+    private void emit(ByteArrayOutputStream found) {
+        if (found == null || found.size() == 0 || outputGone)
+            return;
+        synchronized (out) {
+            try {
+                found.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                outputGone = true;
+            }
+        }
+    }
+
+    private void report(String shown, IOException e) {
+        failed = true;
+        String why = e instanceof NoSuchFileException ? "No such file or directory"
+                : e instanceof AccessDeniedException ? "Permission denied" : e.getMessage();
+        synchronized (err) {
+            try {
+                err.write(("find: '" + shown + "': " + why + "\n").getBytes(StandardCharsets.UTF_8));
+                err.flush();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // an expression this walk can't evaluate goes to the system's find; why is reported when there is none
+    private static int external(Context ctx, List<String> args, OutputStream out, OutputStream err, String why)
+            throws IOException {
+        List<String> argv = new ArrayList<>(args);
+        argv.add(0, "find");
+        int status = Main.external(ctx, argv, InputStream.nullInputStream(), out, err);
+        return status >= 0 ? status : usage(err, why);
+    }
+
+    private static int usage(OutputStream err, String msg) throws IOException {
+        err.write(("find: " + msg + "\n").getBytes(StandardCharsets.UTF_8));
+        err.flush();
+        return 1;
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.ToDoubleFunction;
+
+final class Fuzzy {
+    static final long BUDGET_NANOS = 4_000_000;
+    static final int LIMIT = 50;
+
+    static final class Candidate {
+        final String name;
+        final double frecency;
+        final int match;
+
+        Candidate(String name, double frecency, int match) {
+            this.name = name;
+            this.frecency = frecency;
+            this.match = match;
+        }
+    }
+
+    static final Comparator<Candidate> BEST_FIRST = Comparator
+            .comparingDouble((Candidate c) -> -c.frecency)
+            .thenComparingInt(c -> -c.match)
+            .thenComparingInt(c -> c.name.length())
+            .thenComparing(c -> c.name);
+
+    // subsequence match; -1 when query is not a subsequence, higher is tighter
+    static int score(String query, String name) {
+        if (name.length() < query.length())
+            return -1;
+        int qi = 0, s = 0, run = 0, prev = -2;
+        for (int i = 0; i < name.length() && qi < query.length(); i++) {
+            if (name.charAt(i) != query.charAt(qi))
+                continue;
+            s++;
+            if (i == prev + 1) {
+                run++;
+                s += 2 * run;
+            } else {
+                run = 0;
+            }
+            if (i == 0 || "-_.".indexOf(name.charAt(i - 1)) >= 0)
+                s += 3;
+            prev = i;
+            qi++;
+        }
+        if (qi < query.length())
+            return -1;
+        if (name.startsWith(query))
+            s += 10;
+        return s;
+    }
+
+    // scans until the time budget runs out, keeping the LIMIT best candidates in a bounded heap
+    static List<String> rank(String query, List<List<String>> sources, ToDoubleFunction<String> frecency) {
+        long deadline = System.nanoTime() + BUDGET_NANOS;
+        PriorityQueue<Candidate> worst = new PriorityQueue<>(BEST_FIRST.reversed());
+        int scanned = 0;
+        outer: for (List<String> names : sources) {
+            for (String name : names) {
+                if ((++scanned & 511) == 0 && System.nanoTime() > deadline)
+                    break outer;
+                int m = score(query, name);
+                if (m < 0)
+                    continue;
+                Candidate c = new Candidate(name, frecency.applyAsDouble(name), m);
+                if (worst.size() < LIMIT) {
+                    worst.add(c);
+                } else if (BEST_FIRST.compare(c, worst.peek()) < 0) {
+                    worst.poll();
+                    worst.add(c);
+                }
+            }
+        }
+        List<Candidate> best = new ArrayList<>(worst);
+        best.sort(BEST_FIRST);
+        List<String> out = new ArrayList<>(best.size());
+        for (Candidate c : best)
+            if (!out.contains(c.name))
+                out.add(c.name);
+        return Collections.unmodifiableList(out);
+    }
+}
@@ -0,0 +1,233 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+final class Glob {
+    private static final Map<String, Pattern> compiled = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > 256;
+        }
+    };
+
+    private final DirCache cache;
+    private final Path cwd;
+
+    Glob(DirCache cache, Path cwd) {
+        this.cache = cache;
+        this.cwd = cwd;
+    }
+
+    static boolean hasMeta(String s) {
+        return s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0;
+    }
+
+    // rewrites every unquoted word holding *, ? or [...] into its sorted, escaped matches; no match keeps the word
+    String expandLine(String s) {
+        if (!hasMeta(s))
+            return s;
+        StringBuilder out = new StringBuilder();
+        StringBuilder raw = new StringBuilder();
+        StringBuilder pat = new StringBuilder();
+        boolean glob = false, inS = false, inD = false, esc = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (esc) {
+                raw.append(c);
+                pat.append('\\').append(c);
+                esc = false;
+                continue;
+            }
+            if (c == '\\' && !inS) {
+                raw.append(c);
+                esc = true;
+                continue;
+            }
+            if (c == '\'' && !inD) {
+                inS = !inS;
+                raw.append(c);
+                continue;
+            }
+            if (c == '"' && !inS) {
+                inD = !inD;
+                raw.append(c);
+                continue;
+            }
+            if (!inS && !inD && (Character.isWhitespace(c) || "|<>;&".indexOf(c) >= 0)) {
+                flush(out, raw, pat, glob);
+                glob = false;
+                out.append(c);
+                continue;
+            }
+            raw.append(c);
+            if (inS || inD) {
+                pat.append('\\').append(c);
+            } else {
+                if (c == '*' || c == '?' || c == '[')
+                    glob = true;
+                pat.append(c);
+            }
+        }
+        flush(out, raw, pat, glob);
+        return out.toString();
+    }
+
+    private void flush(StringBuilder out, StringBuilder raw, StringBuilder pat, boolean glob) {
+        List<String> matches = glob ? expand(pat.toString()) : Collections.emptyList();
+        if (matches.isEmpty()) {
+            out.append(raw);
+        } else {
+            for (int i = 0; i < matches.size(); i++) {
+                if (i > 0)
+                    out.append(' ');
+                escape(out, matches.get(i));
+            }
+        }
+        raw.setLength(0);
+        pat.setLength(0);
+    }
+
+    static void escape(StringBuilder out, String word) {
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (Character.isWhitespace(c) || "'\"\\|;&<>$*?[".indexOf(c) >= 0)
+                out.append('\\');
+            out.append(c);
+        }
+    }
+
+    List<String> expand(String pattern) {
+        List<String> out = new ArrayList<>();
+        String[] segs = pattern.split("/", -1);
+        if (pattern.startsWith("/"))
+            match(Path.of("/"), "/", segs, 1, out);
+        else
+            match(cwd, "", segs, 0, out);
+        Collections.sort(out);
+        return out;
+    }
+
+    private void match(Path dir, String shown, String[] segs, int idx, List<String> out) {
+        String seg = segs[idx];
+        boolean last = idx == segs.length - 1;
+        if (seg.equals("**")) {
+            if (!last)
+                match(dir, shown, segs, idx + 1, out);
+            DirCache.Listing l = cache.list(dir);
+            if (l == null)
+                return;
+            for (int i = 0; i < l.names.length; i++) {
+                String name = l.names[i];
+                if (name.startsWith("."))
+                    continue;
+                boolean isDir = l.isDir(i);
+                if (last)
+                    out.add(shown + name);
+                if (isDir && !Files.isSymbolicLink(dir.resolve(name)))
+                    match(dir.resolve(name), shown + name + "/", segs, idx, out);
+            }
+            return;
+        }
+        if (!hasMeta(seg)) {
+            String lit = unescape(seg);
+            Path p = dir.resolve(lit);
+            if (last) {
+                if (Files.exists(p))
+                    out.add(shown + lit);
+            } else if (Files.isDirectory(p)) {
+                match(p, shown + lit + "/", segs, idx + 1, out);
+            }
+            return;
+        }
+        Pattern re = compile(seg);
+        DirCache.Listing l = cache.list(dir);
+        if (l == null)
+            return;
+        boolean dotOk = seg.startsWith(".") || seg.startsWith("\\.");
+        for (int i = 0; i < l.names.length; i++) {
+            String name = l.names[i];
+            if (name.startsWith(".") && !dotOk)
+                continue;
+            if (!re.matcher(name).matches())
+                continue;
+            if (last)
+                out.add(shown + name);
+            else if (l.isDir(i))
+                match(dir.resolve(name), shown + name + "/", segs, idx + 1, out);
+        }
+    }
+
+    static String unescape(String seg) {
+        if (seg.indexOf('\\') < 0)
+            return seg;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < seg.length(); i++) {
+            char c = seg.charAt(i);
+            if (c == '\\' && i + 1 < seg.length())
+                c = seg.charAt(++i);
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    static Pattern compile(String seg) {
+        synchronized (compiled) {
+            Pattern p = compiled.get(seg);
+            if (p == null) {
+                Metrics.patternMisses.increment();
+                try {
+                    p = Pattern.compile(toRegex(seg));
+                } catch (PatternSyntaxException e) {
+                    // a bracket sh can't make sense of either, like [z-a], only matches itself
+                    p = Pattern.compile(Pattern.quote(unescape(seg)));
+                }
+                compiled.put(seg, p);
+            } else {
+                Metrics.patternHits.increment();
+            }
+            return p;
+        }
+    }
+
+    static String toRegex(String seg) {
+        StringBuilder re = new StringBuilder();
+        for (int i = 0; i < seg.length(); i++) {
+            char c = seg.charAt(i);
+            if (c == '\\' && i + 1 < seg.length()) {
+                re.append(Pattern.quote(String.valueOf(seg.charAt(++i))));
+            } else if (c == '*') {
+                re.append(".*");
+            } else if (c == '?') {
+                re.append('.');
+            } else if (c == '[') {
+                int close = seg.indexOf(']', i + 2);
+                if (close < 0) {
+                    re.append("\\[");
+                    continue;
+                }
+                String body = seg.substring(i + 1, close);
+                re.append('[');
+                if (body.startsWith("!") || body.startsWith("^")) {
+                    re.append('^');
+                    body = body.substring(1);
+                }
+                for (char b : body.toCharArray()) {
+                    if (b == '[' || b == ']' || b == '\\' || b == '&' || b == '^')
+                        re.append('\\');
+                    re.append(b);
+                }
+                re.append(']');
+                i = close;
+            } else {
+                re.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return re.toString();
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+// terminal input: bulk reads into a buffer, UTF-8 decoded a key at a time, escape sequences parsed by a
+// table-driven state machine and a bracketed paste handed over as one block
+final class KeyReader extends InputStream {
+    private static final int S_ESC = 0, S_CSI = 1, S_SS3 = 2;
+    private static final int C_BRACKET = 0, C_O = 1, C_PARAM = 2, C_INTER = 3, C_FINAL = 4, C_OTHER = 5;
+    private static final int A_CSI = 0, A_SS3 = 1, A_COLLECT = 2, A_DISPATCH = 3, A_ABORT = 4;
+    private static final int[][] TABLE = {
+            // '['      'O'         0x30-0x3F  0x20-0x2F  0x40-0x7E   other
+            { A_CSI, A_SS3, A_ABORT, A_ABORT, A_ABORT, A_ABORT }, // after ESC
+            { A_DISPATCH, A_DISPATCH, A_COLLECT, A_COLLECT, A_DISPATCH, A_ABORT }, // ESC [
+            { A_DISPATCH, A_DISPATCH, A_COLLECT, A_ABORT, A_DISPATCH, A_ABORT }, // ESC O
+    };
+    private static final Map<String, Integer> KEYS = Map.of("A", Main.KEY_UP, "B", Main.KEY_DOWN,
+            "C", Main.KEY_RIGHT, "D", Main.KEY_LEFT, "200~", Main.KEY_PASTE);
+    private static final byte[] PASTE_END = "\u001B[201~".getBytes(StandardCharsets.US_ASCII);
+    // how long a lone ESC waits for the rest of a sequence on a source that can't answer available()
+    static final long ESC_MILLIS = 50;
+
+    // a source that can wait a bounded time for input; a daemon session's socket is one
+    interface Timed {
+        // as read, but 0 when nothing arrived within millis
+        int read(byte[] b, int off, int len, long millis) throws IOException;
+    }
+
+    private final InputStream in;
+    private final byte[] buf = new byte[8192];
+    private int pos, lim;
+    private String pasted = "";
+
+    KeyReader(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == lim) {
+            pos = 0;
+            lim = Math.max(0, in.read(buf, 0, buf.length));
+            if (lim == 0)
+                return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return lim - pos + in.available();
+    }
+
+    // bytes already read from the terminal but not consumed; echo is only flushed once this drains
+    int buffered() {
+        return lim - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    String pasted() {
+        return pasted;
+    }
+
+    // a code point, or one of the Main.KEY_* constants; unknown escape sequences are skipped
+    int readKey() throws IOException {
+        while (true) {
+            int b = read();
+            if (b == -1)
+                return -1;
+            if (b == 0x1B) {
+                int k = escape();
+                if (k != 0)
+                    return k;
+                continue;
+            }
+            if (b == 127)
+                return Main.KEY_BACKSPACE;
+            if (b == '\r' || b == '\n')
+                return Main.KEY_ENTER;
+            if (b < 0x80)
+                return b;
+            return decode(b);
+        }
+    }
+
+    private int escape() throws IOException {
+        if (buffered() == 0 && !arrives())
+            return 0x1B;
+        int state = S_ESC;
+        StringBuilder seq = new StringBuilder();
+        while (true) {
+            int b = read();
+            if (b == -1)
+                return 0x1B;
+            switch (TABLE[state][classOf(b)]) {
+                case A_CSI:
+                    state = S_CSI;
+                    break;
+                case A_SS3:
+                    state = S_SS3;
+                    break;
+                case A_COLLECT:
+                    seq.append((char) b);
+                    break;
+                case A_DISPATCH: {
+                    Integer key = KEYS.get(seq.append((char) b).toString());
+                    if (key == null)
+                        return 0;
+                    if (key == Main.KEY_PASTE)
+                        readPaste();
+                    return key;
+                }
+                default:
+                    // not a sequence: ESC on its own, and the byte is read again as a key
+                    pos--;
+                    return state == S_ESC ? 0x1B : 0;
+            }
+        }
+    }
+
+    // whether more input follows the ESC just read: a terminal's available() says so, a socket is given a moment
+    private boolean arrives() throws IOException {
+        if (!(in instanceof Timed))
+            return in.available() > 0;
+        int n = ((Timed) in).read(buf, 0, buf.length, ESC_MILLIS);
+        if (n <= 0)
+            return false;
+        pos = 0;
+        lim = n;
+        return true;
+    }
+
+    private static int classOf(int b) {
+        if (b == '[')
+            return C_BRACKET;
+        if (b == 'O')
+            return C_O;
+        if (b >= 0x30 && b <= 0x3F)
+            return C_PARAM;
+        if (b >= 0x20 && b <= 0x2F)
+            return C_INTER;
+        if (b >= 0x40 && b <= 0x7E)
+            return C_FINAL;
+        return C_OTHER;
+    }
+
+    // everything up to ESC [ 201 ~, decoded in one go
+    private void readPaste() throws IOException {
+        byte[] block = new byte[Math.max(256, buffered())];
+        int n = 0;
+        while (true) {
+            int b = read();
+            if (b == -1)
+                break;
+            if (n == block.length)
+                block = Arrays.copyOf(block, n * 2);
+            block[n++] = (byte) b;
+            if (b == '~' && n >= PASTE_END.length
+                    && Arrays.equals(block, n - PASTE_END.length, n, PASTE_END, 0, PASTE_END.length)) {
+                n -= PASTE_END.length;
+                break;
+            }
+        }
+        pasted = new String(block, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private int decode(int b) throws IOException {
+        int extra, cp;
+        if (b >= 0xF8) {
+            return 0xFFFD;
+        } else if (b >= 0xF0) {
+            extra = 3;
+            cp = b & 0x07;
+        } else if (b >= 0xE0) {
+            extra = 2;
+            cp = b & 0x0F;
+        } else if (b >= 0xC0) {
+            extra = 1;
+            cp = b & 0x1F;
+        } else {
+            return 0xFFFD;
+        }
+        for (int i = 0; i < extra; i++) {
+            int c = read();
+            if (c == -1)
+                return 0xFFFD;
+            if ((c & 0xC0) != 0x80) {
+                pos--;
+                return 0xFFFD;
+            }
+            cp = (cp << 6) | (c & 0x3F);
+        }
+        return Character.isValidCodePoint(cp) ? cp : 0xFFFD;
+    }
+}
@@ -11,59 +11,13 @@ import java.io.InputStream;
 import java.nio.file.Path;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
-
-interface Proc {
-    OutputStream stdin();
-
-    InputStream stdout();
-
-    InputStream stderr();
-
-    void start() throws Exception;
-
-    int waitFor() throws InterruptedException;
-}
-
-final class ExternalProc implements Proc {
-    private final ProcessBuilder pb;
-    private Process p;
-
-    ExternalProc(List<String> argv, File cwd, Map<String, String> env) {
-        this.pb = new ProcessBuilder(argv).directory(cwd);
-        if (env != null)
-            pb.environment().putAll(env);
-    }
-
-    @Override
-    public OutputStream stdin() {
-        return p.getOutputStream();
-    }
-
-    @Override
-    public InputStream stdout() {
-        return p.getInputStream();
-    }
-
-    @Override
-    public InputStream stderr() {
-        return p.getErrorStream();
-    }
-
-    @Override
-    public void start() throws IOException {
-        p = pb.start();
-    }
-
-    @Override
-    public int waitFor() throws InterruptedException {
-        return p.waitFor();
-    }
-}
+import java.util.concurrent.ConcurrentHashMap;
 
 final class BuiltinProc implements Proc {
     private final String name;
     private final List<String> args;
     private final Builtins impl;
+    private final Context ctx;
     private final PipedOutputStream inWriter = new PipedOutputStream();
     private final PipedInputStream inReader;
     private final PipedOutputStream outWriter = new PipedOutputStream();
@@ -73,13 +27,19 @@ final class BuiltinProc implements Proc {
 
     private Thread worker;
     private volatile int exitCode = 0;
+    private long startedAt;
+    private volatile long endedAt;
+    private volatile long[] cpu;
+
+    static final int PIPE_SIZE = 64 * 1024;
 
-    BuiltinProc(String name, List<String> args, Builtins impl) throws IOException {
+    BuiltinProc(String name, List<String> args, Builtins impl, Context ctx) throws IOException {
         this.name = name;
         this.args = args;
         this.impl = impl;
-        this.inReader = new PipedInputStream(inWriter);
-        this.outReader = new PipedInputStream(outWriter);
+        this.ctx = ctx;
+        this.inReader = new PipedInputStream(inWriter, PIPE_SIZE);
+        this.outReader = new PipedInputStream(outWriter, PIPE_SIZE);
         this.errReader = new PipedInputStream(errWriter);
     }
 
@@ -100,9 +60,11 @@ final class BuiltinProc implements Proc {
 
     @Override
     public void start() {
+        startedAt = System.nanoTime();
         worker = new Thread(() -> {
             try {
-                exitCode = impl.runBuiltin(name, args, inReader, outWriter, errWriter);
+                exitCode = impl.runBuiltin(ctx, name, args, inReader, outWriter, errWriter);
+                cpu = Timing.threadCpu();
             } catch (Exception e) {
                 try {
                     errWriter.write(("internal error: " + e.getMessage() + "\n").getBytes());
@@ -113,6 +75,7 @@ final class BuiltinProc implements Proc {
                 Main.IO.closeQuietly(outWriter);
                 Main.IO.closeQuietly(errWriter);
                 Main.IO.closeQuietly(inReader);
+                endedAt = System.nanoTime();
             }
         }, "builtin-" + name);
         worker.start();
@@ -123,16 +86,28 @@ final class BuiltinProc implements Proc {
         worker.join();
         return exitCode;
     }
+
+    @Override
+    public long elapsedNanos() {
+        return endedAt == 0 ? -1 : endedAt - startedAt;
+    }
+
+    @Override
+    public long[] cpuNanos() {
+        return cpu;
+    }
 }
 
 final class Builtins {
-    private static boolean isBuiltin(String s) {
-        return s.equals("echo") || s.equals("exit") || s.equals("pwd")
-                || s.equals("type") || s.equals("cd") || s.equals("history");
+    static final List<String> NAMES = List.of("echo", "exit", "pwd", "type", "cd", "history", "export", "unset",
+            "time", "shellstats", "alias", "unalias", "tee", "sort", "find", "coproc");
+
+    static boolean isBuiltin(String s) {
+        return NAMES.contains(s);
     }
 
-    static String findOnPath(String str) {
-        String path = System.getenv("PATH");
+    static String findOnPath(Context ctx, String str) {
+        String path = ctx.env.get("PATH");
         if (path == null)
             return str + ": not found";
         for (String dir : path.split(File.pathSeparator)) {
@@ -144,7 +119,7 @@ final class Builtins {
         return str + ": not found";
     }
 
-    int runBuiltin(String name, List<String> args,
+    int runBuiltin(Context ctx, String name, List<String> args,
             InputStream in, OutputStream out, OutputStream err) throws IOException {
         switch (name) {
             case "echo": {
@@ -153,8 +128,91 @@ final class Builtins {
                 out.flush();
                 return 0;
             }
+            case "cat":
+                return Cat.run(args, in, out, err);
+            case "tee":
+                return FanOut.tee(ctx, args, in, out, err);
+            case "sort":
+                return Sort.run(ctx, args, in, out, err);
+            case "find":
+                return Find.run(ctx, args, out, err);
+            case "coproc":
+                return Coproc.run(ctx, args, in, out, err);
+            case "export": {
+                if (args.isEmpty()) {
+                    for (Map.Entry<String, String> e : ctx.env.exportedVars().entrySet())
+                        out.write(("declare -x " + e.getKey() + "=\"" + e.getValue() + "\"\n").getBytes());
+                    out.flush();
+                    return 0;
+                }
+                int rc = 0;
+                for (String arg : args) {
+                    int eq = arg.indexOf('=');
+                    String var = eq < 0 ? arg : arg.substring(0, eq);
+                    if (!Env.isName(var)) {
+                        err.write(("export: `" + arg + "': not a valid identifier\n").getBytes());
+                        rc = 1;
+                        continue;
+                    }
+                    ctx.env.export(var, eq < 0 ? null : arg.substring(eq + 1));
+                }
+                err.flush();
+                return rc;
+            }
+            case "shellstats":
+                Metrics.report(out);
+                return 0;
+            case "alias": {
+                if (args.isEmpty()) {
+                    for (String a : new TreeSet<>(Main.aliases().keySet()))
+                        out.write(("alias " + a + "='" + Main.aliases().get(a).text + "'\n").getBytes());
+                    out.flush();
+                    return 0;
+                }
+                int rc = 0;
+                for (String arg : args) {
+                    int eq = arg.indexOf('=');
+                    if (eq < 0) {
+                        Ast.Alias a = Main.aliases().get(arg);
+                        if (a == null) {
+                            err.write(("alias: " + arg + ": not found\n").getBytes());
+                            rc = 1;
+                        } else {
+                            out.write(("alias " + arg + "='" + a.text + "'\n").getBytes());
+                        }
+                        continue;
+                    }
+                    try {
+                        Main.aliases().put(arg.substring(0, eq), new Ast.Alias(arg.substring(eq + 1)));
+                    } catch (IllegalArgumentException e) {
+                        err.write(("alias: " + e.getMessage() + "\n").getBytes());
+                        rc = 1;
+                    }
+                }
+                out.flush();
+                err.flush();
+                return rc;
+            }
+            case "unalias": {
+                int rc = 0;
+                for (String arg : args) {
+                    if (arg.equals("-a")) {
+                        Main.aliases().clear();
+                    } else if (Main.aliases().remove(arg) == null) {
+                        err.write(("unalias: " + arg + ": not found\n").getBytes());
+                        rc = 1;
+                    }
+                }
+                err.flush();
+                return rc;
+            }
+            case "unset": {
+                for (String var : args)
+                    ctx.env.unset(var);
+                return 0;
+            }
             case "pwd": {
-                out.write((System.getProperty("user.dir") + "\n").getBytes());
+                out.write((ctx.cwd + "\n").getBytes());
                 out.flush();
                 return 0;
             }
@@ -163,10 +221,14 @@ final class Builtins {
                     return 0;
                 int rc = 0;
                 for (String target : args) {
-                    if (isBuiltin(target)) {
+                    if (Main.aliases().containsKey(target)) {
+                        out.write((target + " is aliased to `" + Main.aliases().get(target).text + "'\n").getBytes());
+                    } else if (Main.functions().containsKey(target)) {
+                        out.write((target + " is a function\n").getBytes());
+                    } else if (isBuiltin(target)) {
                         out.write((target + " is a shell builtin\n").getBytes());
                     } else {
-                        String line = findOnPath(target);
+                        String line = findOnPath(ctx, target);
                         if (line.endsWith("not found")) {
                             out.write((target + " not found\n").getBytes());
                             rc = 1;
@@ -179,54 +241,32 @@ final class Builtins {
                 return rc;
             }
             case "cd": {
-                if (args.isEmpty()) {
-                    String home = System.getenv("HOME");
-                    if (home == null || home.isEmpty())
-                        home = System.getProperty("user.home");
-                    if (home != null && !home.isEmpty()) {
-                        System.setProperty("user.dir", home);
-                        return 0;
-                    }
-                    err.write("cd: HOME not set\n".getBytes());
-                    err.flush();
-                    return 1;
-                }
                 if (args.size() > 1) {
                     err.write("cd: too many arguments\n".getBytes());
                     err.flush();
                     return 1;
                 }
-
-                String pathArg = args.get(0);
-                if (!pathArg.isEmpty() && pathArg.charAt(0) == '~') {
-                    String home = System.getenv("HOME");
+                String pathArg = args.isEmpty() ? "~" : args.get(0);
+                if (pathArg.equals("~") || pathArg.startsWith("~/")) {
+                    String home = ctx.env.get("HOME");
                     if (home == null || home.isEmpty())
                         home = System.getProperty("user.home");
-                    if (home != null && !home.isEmpty()) {
-                        System.setProperty("user.dir", home);
-                        return 0;
+                    if (home == null || home.isEmpty()) {
+                        err.write("cd: HOME not set\n".getBytes());
+                        err.flush();
+                        return 1;
                     }
-                    err.write("cd: HOME not set\n".getBytes());
+                    pathArg = home + pathArg.substring(1);
+                }
+                // lexical, as cd -L: "dir/.." is the cwd again even when dir is a symlink
+                Path dir = ctx.resolve(pathArg);
+                if (!Files.isDirectory(dir)) {
+                    err.write(("cd: " + (args.isEmpty() ? pathArg : args.get(0)) + ": No such file or directory\n").getBytes());
                     err.flush();
                     return 1;
                 }
-                if (!pathArg.isEmpty() && pathArg.charAt(0) == '.') {
-                    Main.change(pathArg);
-                    return 0;
-                }
-                String abs = Main.exists(pathArg);
-                if (abs != null) {
-                    System.setProperty("user.dir", abs);
-                    return 0;
-                }
-                String relTry = Main.exists(System.getProperty("user.dir") + "/" + pathArg);
-                if (relTry != null) {
-                    System.setProperty("user.dir", relTry);
-                    return 0;
-                }
-                err.write(("cd: " + pathArg + ": No such file or directory\n").getBytes());
-                err.flush();
-                return 1;
+                ctx.cwd = dir;
+                return 0;
             }
             default: {
                 err.write((name + ": not a builtin\n").getBytes());
@@ -237,69 +277,58 @@ final class Builtins {
     }
 }
 
-class TrieNode {
-    TrieNode[] children = new TrieNode[128];
-    boolean isEndOfWord = false;
-}
+public class Main {
 
-class Trie {
-    private final TrieNode root = new TrieNode();
-
-    public void insert(String word) {
-        TrieNode cur = root;
-        for (char ch : word.toCharArray()) {
-            int idx = ch;
-            if (cur.children[idx] == null)
-                cur.children[idx] = new TrieNode();
-            cur = cur.children[idx];
-        }
-        cur.isEndOfWord = true;
-    }
-
-    public String search(String word) {
-        StringBuilder result = new StringBuilder();
-        TrieNode cur = root;
-        for (char ch : word.toCharArray()) {
-            int idx = ch;
-            if (cur.children[idx] == null)
-                return "";
-            cur = cur.children[idx];
-        }
-        while (!cur.isEndOfWord) {
-            int c = 0;
-            int next = -1;
-            for (int i = 0; i < 128; i++)
-                if (cur.children[i] != null) {
-                    c++;
-                    next = i;
-                }
-            if (c != 1)
-                return "";
-            result.append((char) next);
-            cur = cur.children[next];
-        }
-        return result.toString();
+    static final String PROMPT = "$ ";
+
+    static final int KEY_UP = -1001, KEY_DOWN = -1002, KEY_RIGHT = -1003, KEY_LEFT = -1004,
+            KEY_ENTER = -1005, KEY_BACKSPACE = -1006, KEY_PASTE = -1007;
+
+    static final Builtins builtins = new Builtins();
+    static final History history = new History();
+    static final Map<Path, Integer> appendTracker = new ConcurrentHashMap<>();
+    static final PathCompleter paths = new PathCompleter(new DirCache());
+    static final ExecIndex execIndex = new ExecIndex();
+    // the interactive shell's; a daemon session keeps its own
+    private static final Map<String, Ast.Alias> aliases = new ConcurrentHashMap<>();
+    private static final Map<String, Ast.Node> functions = new ConcurrentHashMap<>();
+    static Path histFile;
+
+    static Map<String, Ast.Alias> aliases() {
+        Session s = Session.current();
+        return s != null ? s.aliases : aliases;
     }
 
-    public boolean checkComplete(String word) {
-        TrieNode cur = root;
-        for (char ch : word.toCharArray())
-            cur = cur.children[ch];
-        for (int i = 0; i < 128; i++)
-            if (cur.children[i] != null)
-                return false;
-        return true;
+    static Map<String, Ast.Node> functions() {
+        Session s = Session.current();
+        return s != null ? s.functions : functions;
     }
-}
 
-public class Main {
+    static Env env() {
+        return Context.current().env;
+    }
 
-    static final String PROMPT = "$ ";
+    static class ANSI {
+        // the local terminal's; a daemon session has its own, from its client's TERM
+        static boolean bracketedPaste;
 
-    static final int KEY_UP = -1001, KEY_DOWN = -1002, KEY_RIGHT = -1003, KEY_LEFT = -1004,
-            KEY_ENTER = -1005, KEY_BACKSPACE = -1006;
+        static boolean bracketedPaste() {
+            Session s = Session.current();
+            return s != null ? s.bracketedPaste : bracketedPaste;
+        }
+
+        // bracketed paste is on only while a line is being edited, so commands never see the markers
+        static void prompt() {
+            System.out.print(bracketedPaste() ? "\u001B[?2004h" + PROMPT : PROMPT);
+            System.out.flush();
+        }
+
+        static void endInput() {
+            if (bracketedPaste())
+                System.out.print("\u001B[?2004l");
+            System.out.println();
+        }
 
-    static class ANSI {
         static void clearLine() {
             System.out.print("\r\u001B[2K");
         }
@@ -312,75 +341,114 @@ public class Main {
         }
     }
 
+    // one history per JVM, shared by every daemon session; each line editor keeps its own place in it
     static class History {
+        static final double HALF_LIFE = 50;
+
         private final ArrayList<String> entries = new ArrayList<>();
-        private int cursor = -1; // -1 => new line
+        // command name -> {decayed use count, entry index of the last use}
+        private final Map<String, double[]> usage = new HashMap<>();
 
-        void loadFrom(Path file) throws IOException {
+        synchronized void loadFrom(Path file) throws IOException {
             if (file != null && Files.exists(file)) {
+                ShellEvents.HistoryIO event = ShellEvents.on() ? new ShellEvents.HistoryIO() : null;
+                if (event != null)
+                    event.begin();
+                int before = entries.size();
                 try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
                     String line;
                     while ((line = br.readLine()) != null)
-                        if (!line.isEmpty())
+                        if (!line.isEmpty()) {
                             entries.add(line);
+                            recordUsage(line);
+                        }
                 }
+                commit(event, "read", file, entries.size() - before);
             }
         }
 
-        void saveAll(Path file) throws IOException {
+        private static void commit(ShellEvents.HistoryIO event, String op, Path file, int count) {
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.operation = op;
+                    event.file = file.toString();
+                    event.entries = count;
+                    event.commit();
+                }
+            }
+        }
+
+        synchronized void saveAll(Path file) throws IOException {
             if (file == null)
                 return;
+            ShellEvents.HistoryIO event = ShellEvents.on() ? new ShellEvents.HistoryIO() : null;
+            if (event != null)
+                event.begin();
             StringBuilder buf = new StringBuilder();
             for (String s : entries)
                 buf.append(s).append('\n');
             Files.createDirectories(file.getParent() == null ? Path.of(".") : file.getParent());
             Files.writeString(file, buf.toString(), StandardCharsets.UTF_8);
+            commit(event, "write", file, entries.size());
         }
 
-        void appendNew(Path file, int fromIndex) throws IOException {
+        synchronized void appendNew(Path file, int fromIndex) throws IOException {
             if (file == null)
                 return;
+            ShellEvents.HistoryIO event = ShellEvents.on() ? new ShellEvents.HistoryIO() : null;
+            if (event != null)
+                event.begin();
             StringBuilder buf = new StringBuilder();
             for (int i = fromIndex; i < entries.size(); i++)
                 buf.append(entries.get(i)).append('\n');
             Files.createDirectories(file.getParent() == null ? Path.of(".") : file.getParent());
             Files.writeString(file, buf.toString(), StandardCharsets.UTF_8,
                     StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            commit(event, "append", file, Math.max(0, entries.size() - fromIndex));
         }
 
-        void add(String s) {
-            if (!s.isBlank())
+        synchronized void add(String s) {
+            if (!s.isBlank()) {
                 entries.add(s);
-            cursor = -1;
+                recordUsage(s);
+            }
         }
 
-        int size() {
+        private void recordUsage(String line) {
+            long now = entries.size();
+            for (String[] item : splitList(line)) {
+                for (List<String> seg : splitPipeline(item[0])) {
+                    double[] u = usage.computeIfAbsent(seg.get(0), k -> new double[2]);
+                    u[0] = u[0] * Math.pow(0.5, (now - u[1]) / HALF_LIFE) + 1;
+                    u[1] = now;
+                }
+            }
+        }
+
+        synchronized double frecency(String cmd) {
+            double[] u = usage.get(cmd);
+            return u == null ? 0 : u[0] * Math.pow(0.5, (entries.size() - u[1]) / HALF_LIFE);
+        }
+
+        synchronized int size() {
             return entries.size();
         }
 
-        String get(int i) {
+        synchronized String get(int i) {
             return entries.get(i);
         }
 
-        String prev() {
+        // the entry before from (-1 is the line being typed), stopping at the oldest; -1 when there are none
+        synchronized int prev(int from) {
             if (entries.isEmpty())
-                return null;
-            if (cursor == -1)
-                cursor = entries.size() - 1;
-            else if (cursor > 0)
-                cursor--;
-            return entries.get(cursor);
+                return -1;
+            return from == -1 ? entries.size() - 1 : Math.max(0, from - 1);
         }
 
-        String next() {
-            if (entries.isEmpty())
-                return null;
-            if (cursor >= 0 && cursor < entries.size() - 1) {
-                cursor++;
-                return entries.get(cursor);
-            }
-            cursor = -1;
-            return "";
+        // the entry after from, or -1 once past the newest
+        synchronized int next(int from) {
+            return from >= 0 && from < entries.size() - 1 ? from + 1 : -1;
         }
     }
 
@@ -397,8 +465,8 @@ public class Main {
     static class PathUtil {
         static String resolveOnPath(String name) {
             if (name.contains(File.separator))
-                return new File(name).getAbsolutePath();
-            String path = System.getenv("PATH");
+                return Context.current().resolve(name).toString();
+            String path = env().get("PATH");
             if (path == null)
                 return null;
             for (String dir : path.split(File.pathSeparator)) {
@@ -416,6 +484,9 @@ public class Main {
     }
 
     static List<String> tokenizeArgs(String s) {
+        ShellEvents.Parse event = ShellEvents.on() ? new ShellEvents.Parse() : null;
+        if (event != null)
+            event.begin();
         ArrayList<String> out = new ArrayList<>();
         StringBuilder cur = new StringBuilder();
         boolean inS = false, inD = false, esc = false;
@@ -449,9 +520,21 @@ public class Main {
         }
         if (cur.length() > 0)
             out.add(cur.toString());
+        commitParse(event, "tokenize", s);
         return out;
     }
 
+    static void commitParse(ShellEvents.Parse event, String stage, String input) {
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = stage;
+                event.length = input.length();
+                event.commit();
+            }
+        }
+    }
+
     static void pushTok(List<String> cur, StringBuilder tok) {
         if (tok.length() > 0) {
             cur.add(tok.toString());
@@ -460,6 +543,9 @@ public class Main {
     }
 
     static List<List<String>> splitPipeline(String s) {
+        ShellEvents.Parse event = ShellEvents.on() ? new ShellEvents.Parse() : null;
+        if (event != null)
+            event.begin();
         ArrayList<List<String>> out = new ArrayList<>();
         ArrayList<String> cur = new ArrayList<>();
         StringBuilder tok = new StringBuilder();
@@ -501,372 +587,824 @@ public class Main {
         pushTok(cur, tok);
         if (!cur.isEmpty())
             out.add(cur);
+        commitParse(event, "pipeline", s);
         return out;
     }
 
-    static int readKey(java.io.PushbackInputStream in) throws java.io.IOException {
-        int b = in.read();
-        if (b == -1)
-            return -1;
-
-        if (b == 0x1B) { // ESC
-            int b1 = in.read();
-            if (b1 == -1)
-                return 0x1B;
-            if (b1 == '[' || b1 == 'O') {
-                int b2 = in.read();
-                if (b2 == -1)
-                    return 0x1B;
-                switch (b2) {
-                    case 'A':
-                        return KEY_UP;
-                    case 'B':
-                        return KEY_DOWN;
-                    case 'C':
-                        return KEY_RIGHT;
-                    case 'D':
-                        return KEY_LEFT;
-                    default:
-                        if (Character.isDigit(b2)) {
-                            int x;
-                            while ((x = in.read()) != -1 && Character.isDigit(x)) {
-                            }
-                            if (x != '~' && x != -1)
-                                in.unread(x);
-                        }
-                        return 0x1B;
-                }
-            } else {
-                in.unread(b1);
-                return 0x1B;
-            }
-        } else if (b == 127)
-            return KEY_BACKSPACE;
-        else if (b == '\r' || b == '\n')
-            return KEY_ENTER;
-
-        return b;
-    }
-
     public static void main(String[] args) throws Exception {
+        ExternalProc.selectLaunchMechanism(System.getenv("SHELL_LAUNCH"));
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            histFile = System.getenv().containsKey("HISTFILE") ? Path.of(System.getenv("HISTFILE")) : null;
+            if (histFile != null)
+                history.loadFrom(histFile);
+            Daemon.serve(args.length > 1 ? Path.of(args[1]) : Daemon.socketPath());
+            return;
+        }
+        // input is decoded as UTF-8, so echo it back the same way whatever the platform default is
+        System.setOut(new java.io.PrintStream(new Session.Routed(new java.io.FileOutputStream(java.io.FileDescriptor.out),
+                true), true, StandardCharsets.UTF_8));
+        System.setErr(new java.io.PrintStream(new java.io.FileOutputStream(java.io.FileDescriptor.err), true,
+                StandardCharsets.UTF_8));
         if (System.console() != null) {
             ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c", "stty -echo -icanon min 1 < /dev/tty");
             pb.directory(new File("").getCanonicalFile());
             pb.start().waitFor();
+            String term = System.getenv("TERM");
+            ANSI.bracketedPaste = term != null && !term.equals("dumb");
         }
 
-        Builtins builtins = new Builtins();
-        History history = new History();
-        Map<Path, Integer> appendTracker = new HashMap<>();
-
-        Path histFile = System.getenv().containsKey("HISTFILE") ? Path.of(System.getenv("HISTFILE")) : null;
+        histFile = System.getenv().containsKey("HISTFILE") ? Path.of(System.getenv("HISTFILE")) : null;
         if (histFile != null)
             history.loadFrom(histFile);
+        Rc.run();
 
-        System.out.print(PROMPT);
+        ANSI.prompt();
 
-        try (java.io.PushbackInputStream pin = new java.io.PushbackInputStream(System.in, 8)) {
-            StringBuilder sb = new StringBuilder();
+        try (KeyReader pin = new KeyReader(System.in)) {
+            repl(pin);
+        }
+    }
 
-            while (true) {
-                Trie trie = new Trie();
+    // the line editor and command loop; daemon sessions run it on their own thread with their own reader
+    static void repl(KeyReader pin) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        Trie trie = null;
+        long trieVersion = -1;
+        String triePath = null;
+
+        while (true) {
+            long version = execIndex.version();
+            String path = env().get("PATH");
+            if (trie == null || version != trieVersion || !Objects.equals(path, triePath)) {
+                trie = new Trie();
                 addToTrie(trie);
-                boolean firstTab = false;
-                sb.setLength(0);
-
-                while (true) {
-                    int ch = readKey(pin);
-                    if (ch == -1)
-                        return;
-
-                    if (ch == KEY_UP) {
-                        String prev = history.prev();
-                        if (prev != null) {
-                            sb.setLength(0);
-                            sb.append(prev);
-                            ANSI.redraw(PROMPT, sb);
-                        }
-                        continue;
-                    } else if (ch == KEY_DOWN) {
-                        String next = history.next();
-                        if (next != null) {
-                            sb.setLength(0);
-                            sb.append(next);
-                            ANSI.redraw(PROMPT, sb);
-                        }
-                        continue;
-                    } else if (ch == '\t') {
-                        String str = sb.toString();
-                        if (str.equals("e")) {
-                            sb.append("cho ");
-                            System.out.print("cho ");
-                        } else if (str.equals("ec")) {
-                            sb.append("ho ");
-                            System.out.print("ho ");
-                        } else if (str.equals("ech")) {
-                            sb.append("o ");
-                            System.out.print("o ");
-                        } else if (str.equals("ex")) {
-                            sb.append("it ");
-                            System.out.print("it ");
-                        } else if (str.equals("exi")) {
-                            sb.append("t ");
-                            System.out.print("t ");
-                        } else {
-                            String file = trie.search(str);
-                            if (file.isEmpty()) {
-                                List<String> files = fileOnTab(str);
-                                if (files == null || files.isEmpty()) {
-                                    System.out.println((char) 7);
-                                    continue;
-                                }
-                                if (files.size() == 1) {
-                                    String tail = files.get(0).substring(str.length()) + " ";
-                                    sb.append(tail);
-                                    System.out.print(tail);
-                                    continue;
-                                }
-                                if (!firstTab) {
-                                    firstTab = true;
-                                    System.out.println((char) 7);
-                                    continue;
-                                }
-                                for (String f : files)
-                                    System.out.print(f + "  ");
-                                System.out.println();
-                                ANSI.redraw(PROMPT, sb);
+                trieVersion = version;
+                triePath = path;
+            }
+            boolean firstTab = false;
+            int recalled = -1;
+            sb.setLength(0);
+
+            while (true) {
+                int ch = pin.readKey();
+                if (ch == -1)
+                    return;
+
+                if (ch == KEY_UP) {
+                    int prev = history.prev(recalled);
+                    if (prev >= 0) {
+                        recalled = prev;
+                        sb.setLength(0);
+                        sb.append(history.get(prev));
+                        ANSI.redraw(PROMPT, sb);
+                    }
+                    continue;
+                } else if (ch == KEY_DOWN) {
+                    if (history.size() > 0) {
+                        recalled = history.next(recalled);
+                        sb.setLength(0);
+                        if (recalled >= 0)
+                            sb.append(history.get(recalled));
+                        ANSI.redraw(PROMPT, sb);
+                    }
+                    continue;
+                } else if (ch == '\t' && PathCompleter.wordStart(sb) > 0) {
+                    firstTab = completeArgument(sb, firstTab, pin);
+                    continue;
+                } else if (ch == '\t' && "fuzzy".equals(env().get("COMPLETION")) && sb.length() > 0
+                        && trie.search(sb.toString()).isEmpty()) {
+                    List<String> ranked = Fuzzy.rank(sb.toString(), List.of(Builtins.NAMES, trie.words()),
+                            history::frecency);
+                    if (ranked.isEmpty()) {
+                        System.out.println((char) 7);
+                    } else if (ranked.size() == 1) {
+                        sb.setLength(0);
+                        sb.append(ranked.get(0)).append(' ');
+                        ANSI.redraw(PROMPT, sb);
+                    } else if (!firstTab) {
+                        firstTab = true;
+                        System.out.println((char) 7);
+                    } else {
+                        System.out.println();
+                        System.out.println(String.join("  ", ranked));
+                        ANSI.redraw(PROMPT, sb);
+                    }
+                    continue;
+                } else if (ch == '\t') {
+                    String str = sb.toString();
+                    if (str.equals("e")) {
+                        sb.append("cho ");
+                        System.out.print("cho ");
+                    } else if (str.equals("ec")) {
+                        sb.append("ho ");
+                        System.out.print("ho ");
+                    } else if (str.equals("ech")) {
+                        sb.append("o ");
+                        System.out.print("o ");
+                    } else if (str.equals("ex")) {
+                        sb.append("it ");
+                        System.out.print("it ");
+                    } else if (str.equals("exi")) {
+                        sb.append("t ");
+                        System.out.print("t ");
+                    } else {
+                        String file = trie.search(str);
+                        if (file.isEmpty()) {
+                            List<String> files = ExecIndex.await(execIndex.submit(() -> fileOnTab(str, path)),
+                                    pin, ExecIndex.DEADLINE_MS);
+                            if (files == null && pin.available() > 0)
+                                continue;
+                            if (files == null || files.isEmpty()) {
+                                System.out.println((char) 7);
                                 continue;
                             }
-                            sb.append(file);
-                            System.out.print(file);
-                            if (trie.checkComplete(sb.toString())) {
-                                System.out.print(" ");
-                                sb.append(" ");
+                            if (files.size() == 1) {
+                                String tail = files.get(0).substring(str.length()) + " ";
+                                sb.append(tail);
+                                System.out.print(tail);
+                                continue;
                             }
-                        }
-                        System.out.flush();
-                        continue;
-                    } else if (ch == KEY_ENTER) {
-                        System.out.println();
-                        break;
-                    } else if (ch == KEY_BACKSPACE) {
-                        if (sb.length() > 0) {
-                            sb.deleteCharAt(sb.length() - 1);
+                            if (!firstTab) {
+                                firstTab = true;
+                                System.out.println((char) 7);
+                                continue;
+                            }
+                            for (String f : files)
+                                System.out.print(f + "  ");
+                            System.out.println();
                             ANSI.redraw(PROMPT, sb);
+                            continue;
                         }
-                        continue;
-                    } else {
-                        if (ch >= 32 && ch < 127) {
-                            sb.append((char) ch);
-                            System.out.print((char) ch);
-                            System.out.flush();
+                        sb.append(file);
+                        System.out.print(file);
+                        if (trie.checkComplete(sb.toString())) {
+                            System.out.print(" ");
+                            sb.append(" ");
                         }
                     }
+                    System.out.flush();
+                    continue;
+                } else if (ch == KEY_ENTER) {
+                    ANSI.endInput();
+                    break;
+                } else if (ch == KEY_BACKSPACE) {
+                    if (sb.length() > 0) {
+                        sb.setLength(sb.offsetByCodePoints(sb.length(), -1));
+                        ANSI.redraw(PROMPT, sb);
+                    }
+                    continue;
+                } else if (ch == KEY_PASTE) {
+                    // one insert and one redraw for the whole block; its lines run as a list on Enter
+                    String text = pin.pasted().replace("\r\n", "\n").replace('\r', '\n');
+                    text.codePoints().filter(c -> c >= 32 || c == '\n' || c == '\t').forEach(sb::appendCodePoint);
+                    ANSI.redraw(PROMPT, sb);
+                    continue;
+                } else if (ch >= 32 && ch != 127) {
+                    sb.appendCodePoint(ch);
+                    System.out.print(Character.toChars(ch));
+                    if (pin.buffered() == 0)
+                        System.out.flush();
                 }
+            }
 
-                String input = sb.toString();
-                history.add(input);
+            String input = sb.toString();
+            history.add(input);
+            runList(input);
+            ANSI.prompt();
+        }
+    }
 
-                if (input.equals("history")) {
-                    for (int i = 0; i < history.size(); i++)
-                        System.out.println((i + 1) + " " + history.get(i));
-                    System.out.print(PROMPT);
-                    continue;
-                }
-                if (input.startsWith("history")) {
-                    String[] parts = input.split("\\s+");
-                    if (parts.length > 1 && parts[1].equals("-r") && parts.length >= 3) {
-                        // read history from file
-                        Path p = Path.of(parts[2]);
-                        history.loadFrom(p);
-                        System.out.print(PROMPT);
-                        continue;
-                    }
-                    if (parts.length > 1 && parts[1].equals("-w") && parts.length >= 3) {
-                        Path p = Path.of(parts[2]);
-                        history.saveAll(p);
-                        System.out.print(PROMPT);
-                        continue;
-                    }
-                    if (parts.length > 1 && parts[1].equals("-a") && parts.length >= 3) {
-                        Path p = Path.of(parts[2]);
-                        int from = appendTracker.getOrDefault(p, 0);
-                        history.appendNew(p, from);
-                        appendTracker.put(p, history.size());
-                        System.out.print(PROMPT);
-                        continue;
-                    }
-                    if (parts.length > 1) {
-                        int n = Integer.parseInt(parts[1]);
-                        for (int i = Math.max(0, history.size() - n); i < history.size(); i++) {
-                            System.out.println((i + 1) + " " + history.get(i));
-                        }
-                        System.out.print(PROMPT);
-                        continue;
-                    }
+    static boolean completeArgument(StringBuilder sb, boolean firstTab, KeyReader in)
+            throws IOException {
+        String word = sb.substring(PathCompleter.wordStart(sb));
+        String home = env().get("HOME") != null ? env().get("HOME") : System.getProperty("user.home");
+        Path cwd = Context.current().cwd;
+        PathCompleter.Matches m = ExecIndex.await(execIndex.submit(() -> paths.complete(Glob.unescape(word), cwd, home)),
+                in, ExecIndex.DEADLINE_MS);
+        if (m == null && in.available() > 0)
+            return firstTab;
+        if (m == null || m.size() == 0) {
+            System.out.print((char) 7);
+            System.out.flush();
+            return firstTab;
+        }
+        String common = m.commonPrefix();
+        if (m.size() == 1 || common.length() > m.typed.length()) {
+            StringBuilder tail = new StringBuilder();
+            Glob.escape(tail, common.substring(m.typed.length()));
+            if (m.size() == 1)
+                tail.append(m.isDir(0) ? "/" : " ");
+            sb.append(tail);
+            System.out.print(tail);
+            System.out.flush();
+            return false;
+        }
+        if (!firstTab) {
+            System.out.print((char) 7);
+            System.out.flush();
+            return true;
+        }
+        int width = 0;
+        for (int i = 0; i < m.size(); i++)
+            width = Math.max(width, m.name(i).length() + 1);
+        PathCompleter.show(m.size(), width, m::label, in);
+        ANSI.redraw(PROMPT, sb);
+        return firstTab;
+    }
+
+    static int runList(String input) throws Exception {
+        Ast.Node node;
+        try {
+            node = Ast.parse(input);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return Context.current().lastStatus = 2;
+        }
+        Context.current().listings = new DirCache();
+        return node.run();
+    }
+
+    static int runSimple(String item) throws Exception {
+        return runSimple(item, null);
+    }
+
+    // one command of a list: aliases are replaced by their parsed value before anything is expanded. node, when
+    // the command comes from a parsed list, keeps what can be reused on its next run
+    static int runSimple(String item, Ast.Simple node) throws Exception {
+        int sp = 0;
+        while (sp < item.length() && !Character.isWhitespace(item.charAt(sp)))
+            sp++;
+        String name = item.substring(0, sp);
+        Context ctx = Context.current();
+        Ast.Alias alias = aliases().get(name);
+        if (alias != null && ctx.activeAliases.add(name)) {
+            try {
+                return Ast.withArgs(alias.node, item.substring(sp)).run();
+            } finally {
+                ctx.activeAliases.remove(name);
+            }
+        }
+        Metrics.commands.increment();
+        Glob glob = new Glob(ctx.listings, ctx.cwd);
+        String cmd = glob.expandLine(expand(item));
+        // "time cmd" reports on its own, so REPORTTIME would only print the same numbers twice
+        double threshold = cmd.equals("time") || cmd.startsWith("time ") ? -1 : reportTime();
+        Trace.Record rec = Trace.begin(cmd);
+        int status = 1;
+        try {
+            status = threshold >= 0 ? timed(cmd, threshold) : runCommand(cmd, node);
+        } finally {
+            ProcSubst.finish(ctx);
+            // a command that threw is recorded as failed, and the thread's record never outlives it
+            Trace.end(rec, status);
+        }
+        ctx.lastStatus = status;
+        return status;
+    }
+
+    // whether the first word of a command names an alias or a function, which only runSimple knows how to run
+    static boolean dispatches(String item) {
+        String name = firstToken(item.trim());
+        return aliases().containsKey(name) || functions().containsKey(name);
+    }
+
+    // each call takes a dozen Java frames, so runaway recursion is stopped well before the thread's stack runs out
+    static final int MAX_FUNCTION_DEPTH = 256;
+
+    static int callFunction(String name, Ast.Node body, List<String> args) throws Exception {
+        Context ctx = Context.current();
+        if (ctx.functions >= MAX_FUNCTION_DEPTH) {
+            System.err.println(name + ": maximum function nesting level exceeded (" + MAX_FUNCTION_DEPTH + ")");
+            return 1;
+        }
+        List<String> saved = ctx.positional;
+        ctx.positional = new ArrayList<>(args);
+        ctx.functions++;
+        try {
+            return body.run();
+        } catch (Ast.Returned r) {
+            return r.status;
+        } finally {
+            ctx.functions--;
+            ctx.positional = saved;
+        }
+    }
+
+    static double reportTime() {
+        String v = env().get("REPORTTIME");
+        if (v == null || v.isEmpty())
+            return -1;
+        try {
+            return Double.parseDouble(v);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // runs a command and prints real/user/sys to stderr when it took at least minSeconds of wall time
+    static int timed(String input, double minSeconds) throws Exception {
+        List<Proc> stages = new ArrayList<>();
+        Context ctx = Context.current();
+        Timing.Meter outer = ctx.meter;
+        Timing.Meter meter = Session.current() != null ? new Timing.Meter(outer) : null;
+        long[] children = meter == null ? Timing.childrenCpu() : null;
+        long[] self = Timing.threadCpu();
+        long t0 = System.nanoTime();
+        int status;
+        long real;
+        long[] external;
+        if (meter != null)
+            ctx.meter = meter;
+        try {
+            status = splitPipeline(input).size() > 1 ? usePipe(input, builtins, stages) : runCommand(input);
+        } finally {
+            real = System.nanoTime() - t0;
+            external = meter == null ? Timing.minus(Timing.childrenCpu(), children) : meter.stop();
+            ctx.meter = outer;
+        }
+        if (real < minSeconds * 1e9)
+            return status;
+        long[] cpu = Timing.plus(external, Timing.minus(Timing.threadCpu(), self));
+        for (Proc p : stages)
+            if (p instanceof BuiltinProc)
+                cpu = Timing.plus(cpu, p.cpuNanos());
+        System.out.flush();
+        if (stages.size() > 1) {
+            List<String> labels = new ArrayList<>();
+            for (List<String> seg : splitPipeline(input))
+                labels.add(String.join(" ", seg));
+            Timing.reportStages(System.err, labels, stages);
+        }
+        Timing.reportTotal(System.err, real, cpu);
+        return status;
+    }
+
+    static int runCommand(String input) throws Exception {
+        return runCommand(input, null);
+    }
+
+    static int runCommand(String input, Ast.Simple node) throws Exception {
+        Context ctx = Context.current();
+        if (input.isEmpty())
+            return ctx.lastStatus;
+        if (input.equals("time") || input.startsWith("time "))
+            return timed(input.substring(4).trim(), 0);
+        List<String> words = node != null ? node.words(input) : tokenizeArgs(input);
+        if (!words.isEmpty() && words.stream().allMatch(Main::isAssignment)) {
+            for (String w : words) {
+                int eq = w.indexOf('=');
+                env().set(w.substring(0, eq), w.substring(eq + 1));
+            }
+            return 0;
+        }
+        Ast.Node fn = words.isEmpty() ? null : functions().get(words.get(0));
+        if (fn != null && splitPipeline(input).size() == 1 && input.indexOf('>') < 0)
+            return callFunction(words.get(0), fn, words.subList(1, words.size()));
+        if (!words.isEmpty() && (words.get(0).equals("export") || words.get(0).equals("unset")
+                || words.get(0).equals("shellstats") || words.get(0).equals("alias")
+                || words.get(0).equals("unalias"))
+                && splitPipeline(input).size() == 1)
+            return builtins.runBuiltin(ctx, words.get(0), words.subList(1, words.size()), System.in, System.out,
+                    System.err);
+        // sort, find and tee on their own run in-process; like an external command typed alone they get no stdin
+        if (!words.isEmpty() && (words.get(0).equals("sort") || words.get(0).equals("find")
+                || words.get(0).equals("tee"))
+                && splitPipeline(input).size() == 1 && input.indexOf('>') < 0)
+            return builtins.runBuiltin(ctx, words.get(0), words.subList(1, words.size()), stdin(), System.out,
+                    System.err);
+        // coproc has no external fallback, and a '>' in the words that start a worker belongs to its command line;
+        // the other forms take a redirect like any builtin
+        if (!words.isEmpty() && words.get(0).equals("coproc") && splitPipeline(input).size() == 1
+                && (unquotedIndex(input, '>') < 0 || words.size() > 1 && !words.get(1).startsWith("-")
+                        && !words.get(1).contains(">")))
+            return builtins.runBuiltin(ctx, "coproc", words.subList(1, words.size()), stdin(), System.out,
+                    System.err);
+        if (input.equals("history")) {
+            for (int i = 0; i < history.size(); i++)
+                System.out.println((i + 1) + " " + history.get(i));
+            return 0;
+        }
+        if (input.startsWith("history")) {
+            String[] parts = input.split("\\s+");
+            if (parts.length > 1 && parts[1].equals("-r") && parts.length >= 3) {
+                // read history from file
+                Path p = ctx.resolve(parts[2]);
+                history.loadFrom(p);
+                return 0;
+            }
+            if (parts.length > 1 && parts[1].equals("-w") && parts.length >= 3) {
+                Path p = ctx.resolve(parts[2]);
+                history.saveAll(p);
+                return 0;
+            }
+            if (parts.length > 1 && parts[1].equals("-a") && parts.length >= 3) {
+                Path p = ctx.resolve(parts[2]);
+                int from = appendTracker.getOrDefault(p, 0);
+                history.appendNew(p, from);
+                appendTracker.put(p, history.size());
+                return 0;
+            }
+            if (parts.length > 1) {
+                int n = Integer.parseInt(parts[1]);
+                for (int i = Math.max(0, history.size() - n); i < history.size(); i++) {
+                    System.out.println((i + 1) + " " + history.get(i));
                 }
+                return 0;
+            }
+        }
 
-                if (splitPipeline(input).size() > 1) {
-                    usePipe(input, builtins);
-                    System.out.print(PROMPT);
-                    continue;
+        if (splitPipeline(input).size() > 1)
+            return usePipe(input, builtins);
+        boolean hasRedir = false, errRedir = false, append = false;
+        for (int i = 0; i < input.length(); i++) {
+            if (input.charAt(i) == '>') {
+                if (i - 1 >= 0 && input.charAt(i - 1) == '2') {
+                    errRedir = true;
+                    input = input.substring(0, i - 1) + input.substring(i);
                 }
-                boolean hasRedir = false, errRedir = false, append = false;
-                for (int i = 0; i < input.length(); i++) {
-                    if (input.charAt(i) == '>') {
-                        if (i - 1 >= 0 && input.charAt(i - 1) == '2') {
-                            errRedir = true;
-                            input = input.substring(0, i - 1) + input.substring(i);
-                        }
-                        hasRedir = true;
-                        break;
-                    }
+                hasRedir = true;
+                break;
+            }
+        }
+        for (int i = 0; i < input.length(); i++) {
+            if (input.charAt(i) == '>') {
+                if (i + 1 < input.length() && input.charAt(i + 1) == '>') {
+                    append = true;
+                    input = input.substring(0, i) + input.substring(i + 1);
                 }
-                for (int i = 0; i < input.length(); i++) {
-                    if (input.charAt(i) == '>') {
-                        if (i + 1 < input.length() && input.charAt(i + 1) == '>') {
-                            append = true;
-                            input = input.substring(0, i) + input.substring(i + 1);
-                        }
-                        hasRedir = true;
-                        break;
-                    }
+                hasRedir = true;
+                break;
+            }
+        }
+        if (hasRedir) {
+            try {
+                return redirect(input, errRedir, append);
+            } catch (java.nio.file.FileSystemException e) {
+                // the target couldn't be opened; the command doesn't run, as in sh
+                System.err.println(e.getFile() + ": " + Cat.reason(e));
+                return 1;
+            }
+        }
+        if (input.split(" ")[0].equals("echo")) {
+            System.out.println(input.length() > 5 ? print(input.substring(5)) : "");
+            return 0;
+        }
+        if (input.split(" ")[0].equals("cat")) {
+            List<String> files = tokenizeArgs(input);
+            if (Cat.hasOptions(files.subList(1, files.size())))
+                return unredirected(ctx, files);
+            if (files.size() > 1)
+                return Cat.toTerminal(files.subList(1, files.size()));
+            return 0;
+        }
+        if (!input.isEmpty() && input.charAt(0) == '\'') {
+            int ind = input.indexOf('\'', 1);
+            if (ind != -1 && ind + 2 <= input.length())
+                return content(input.substring(ind + 2));
+            return 0;
+        }
+        if (!input.isEmpty() && input.charAt(0) == '"') {
+            int ind = input.indexOf('"', 1);
+            if (ind != -1 && ind + 2 <= input.length())
+                return content(input.substring(ind + 2));
+            return 0;
+        }
+        if (input.split(" ")[0].equals("cd"))
+            return builtins.runBuiltin(ctx, "cd", words.subList(1, words.size()), System.in, System.out, System.out);
+        if (input.split(" ")[0].equals("pwd")) {
+            System.out.println(ctx.cwd);
+            return 0;
+        }
+
+        // external command (non-pipe)
+        boolean external = !words.isEmpty() && (node != null ? node.exe(words.get(0)) != null : checkExternal(input));
+        if (external && (ExternalProc.useHelper(env()) || Session.current() != null || ctx.stdin != null)) {
+            List<Proc> single = new ArrayList<>();
+            single.add(new ExternalProc(words, ctx));
+            return startPipe(single);
+        }
+        if (external) {
+            ProcessBuilder pb = new ProcessBuilder(words);
+            pb.directory(ctx.cwd.toFile());
+            env().applyTo(pb);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Process proc = Metrics.start(pb);
+            long bytes = proc.getInputStream().transferTo(System.out);
+            Trace.Record rec = Trace.current();
+            if (rec != null)
+                rec.pump("stdout", bytes);
+            return proc.waitFor();
+        }
+
+        // minimal `type`/`exit`/fallback
+        String head4 = input.length() >= 4 ? input.substring(0, 4) : input;
+        if (head4.equals("type")) {
+            String str = input.length() > 5 ? input.substring(5) : "";
+            if (aliases().containsKey(str)) {
+                System.out.println(str + " is aliased to `" + aliases().get(str).text + "'");
+            } else if (functions().containsKey(str)) {
+                System.out.println(str + " is a function");
+            } else if (Builtins.isBuiltin(str)) {
+                System.out.println(str + " is a shell builtin");
+            } else {
+                String line = Builtins.findOnPath(ctx, str);
+                System.out.println(line);
+                if (line.endsWith("not found"))
+                    return 1;
+            }
+            return 0;
+        } else if (head4.equals("echo")) {
+            System.out.println(input.substring(5));
+            return 0;
+        } else if (head4.equals("exit")) {
+            String[] parts = input.trim().split("\\s+");
+            int code = ctx.lastStatus;
+            if (parts.length > 1) {
+                try {
+                    code = Integer.parseInt(parts[1]) & 0xFF;
+                } catch (NumberFormatException e) {
+                    System.err.println("exit: " + parts[1] + ": numeric argument required");
+                    code = 2;
                 }
-                if (hasRedir) {
-                    redirect(input, errRedir, append);
-                    System.out.print(PROMPT);
+            }
+            if (histFile != null)
+                history.saveAll(histFile);
+            if (Session.current() != null)
+                throw new Session.Exit(code);
+            System.exit(code);
+        }
+        System.out.println(input + ": not found");
+        return 127;
+    }
+
+    // splits a command line on unquoted ;, && and ||, pairing each command with the operator after it
+    static List<String[]> splitList(String s) {
+        List<String[]> out = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean inS = false, inD = false, esc = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (esc) {
+                cur.append(c);
+                esc = false;
+                continue;
+            }
+            if (c == '\\' && !inS) {
+                cur.append(c);
+                esc = true;
+                continue;
+            }
+            int sub = inS ? -1 : c == '`' ? Subst.backtickEnd(s, i)
+                    : c == '$' && i + 1 < s.length() && s.charAt(i + 1) == '(' ? Subst.end(s, i)
+                    : !inD && ProcSubst.startsAt(s, i) ? ProcSubst.end(s, i) : -1;
+            if (sub > 0) {
+                cur.append(s, i, sub + 1);
+                i = sub;
+                continue;
+            }
+            if (c == '\'' && !inD)
+                inS = !inS;
+            else if (c == '"' && !inS)
+                inD = !inD;
+            if (!inS && !inD) {
+                String op = null;
+                if (c == ';')
+                    op = ";";
+                else if (c == '&' && i + 1 < s.length() && s.charAt(i + 1) == '&')
+                    op = "&&";
+                else if (c == '|' && i + 1 < s.length() && s.charAt(i + 1) == '|')
+                    op = "||";
+                if (op != null) {
+                    out.add(new String[] { cur.toString().trim(), op });
+                    cur.setLength(0);
+                    i += op.length() - 1;
                     continue;
                 }
-                if (input.split(" ")[0].equals("echo")) {
-                    System.out.println(print(input.substring(5)));
-                    System.out.print(PROMPT);
-                    continue;
+            }
+            cur.append(c);
+        }
+        if (cur.toString().trim().length() > 0 || out.isEmpty())
+            out.add(new String[] { cur.toString().trim(), ";" });
+        return out;
+    }
+
+    static final java.util.regex.Pattern ASSIGNMENT = java.util.regex.Pattern.compile("[A-Za-z_][A-Za-z0-9_]*=");
+
+    // $?, $NAME, ${...}, $(...), `...`, <(...) and >(...) expansion ahead of tokenizing; values are escaped so their
+    // quotes and operators stay literal
+    static String expand(String s) {
+        if (s.indexOf('$') < 0 && s.indexOf('`') < 0 && s.indexOf('(') < 0)
+            return s;
+        StringBuilder out = new StringBuilder();
+        boolean inS = false, inD = false, esc = false;
+        // the words before the command name that are NAME=value, whose values are one word as in sh
+        boolean atWord = true, leading = true, assign = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (esc) {
+                out.append(c);
+                esc = false;
+                continue;
+            }
+            if (!inS && !inD && Character.isWhitespace(c)) {
+                atWord = true;
+                assign = false;
+            } else if (atWord) {
+                atWord = false;
+                leading = assign = leading && ASSIGNMENT.matcher(s).region(i, s.length()).lookingAt();
+            }
+            boolean whole = inD || assign;
+            if (c == '\\' && !inS) {
+                esc = true;
+            } else if (c == '\'' && !inD) {
+                inS = !inS;
+            } else if (c == '"' && !inS) {
+                inD = !inD;
+            } else if (c == '`' && !inS && Subst.backtickEnd(s, i) > 0) {
+                int close = Subst.backtickEnd(s, i);
+                appendSubst(out, Subst.run(s.substring(i + 1, close).replace("\\`", "`")), inD, whole);
+                i = close;
+                continue;
+            } else if (!inS && !inD && ProcSubst.startsAt(s, i)) {
+                int close = ProcSubst.end(s, i);
+                try {
+                    appendValue(out, ProcSubst.open(s.substring(i + 2, close), c == '<'), false);
+                } catch (IOException e) {
+                    System.err.println("process substitution: " + e.getMessage());
                 }
-                if (input.split(" ")[0].equals("cat")) {
-                    String[] files = convert(input);
-                    if (files.length > 0)
-                        for (String f : files)
-                            content(f);
-                    System.out.print(PROMPT);
+                i = close;
+                continue;
+            } else if (c == '$' && !inS && i + 1 < s.length()) {
+                char n = s.charAt(i + 1);
+                if (n == '(' && Subst.end(s, i) > 0) {
+                    int close = Subst.end(s, i);
+                    appendSubst(out, Subst.run(s.substring(i + 2, close)), inD, whole);
+                    i = close;
                     continue;
                 }
-                if (!input.isEmpty() && input.charAt(0) == '\'') {
-                    int ind = input.indexOf('\'', 1);
-                    if (ind != -1 && ind + 2 <= input.length())
-                        content(input.substring(ind + 2));
-                    System.out.print(PROMPT);
+                if (n == '?') {
+                    appendValue(out, String.valueOf(Context.current().lastStatus), inD, whole);
+                    i++;
                     continue;
                 }
-                if (!input.isEmpty() && input.charAt(0) == '"') {
-                    int ind = input.indexOf('"', 1);
-                    if (ind != -1 && ind + 2 <= input.length())
-                        content(input.substring(ind + 2));
-                    System.out.print(PROMPT);
+                if (n == '#' || n == '@' || n == '*' || (n >= '1' && n <= '9')) {
+                    List<String> positional = Context.current().positional;
+                    appendValue(out, n == '#' ? String.valueOf(positional.size())
+                            : n == '@' || n == '*' ? String.join(" ", positional) : positional(n - '0'), inD, whole);
+                    i++;
                     continue;
                 }
-                if (input.split(" ")[0].equals("cd")) {
-                    String[] parts = input.split("\\s+", 2);
-                    if (parts.length >= 2) {
-                        String path = parts[1];
-                        if (path.charAt(0) == '.') {
-                            change(path);
-                            System.out.print(PROMPT);
-                            continue;
-                        }
-                        if (path.charAt(0) == '~') {
-                            System.setProperty("user.dir", System.getenv("HOME"));
-                            System.out.print(PROMPT);
-                            continue;
-                        }
-                        String ok = exists(path);
-                        if (ok != null)
-                            System.setProperty("user.dir", ok);
-                        else
-                            System.out.println("cd: " + path + ": No such file or directory");
+                if (n == '{') {
+                    int close = s.indexOf('}', i + 2);
+                    if (close > 0) {
+                        appendValue(out, parameter(s.substring(i + 2, close)), inD, whole);
+                        i = close;
+                        continue;
                     }
-                    System.out.print(PROMPT);
-                    continue;
-                }
-                if (input.equals("pwd")) {
-                    System.out.println(System.getProperty("user.dir"));
-                    System.out.print(PROMPT);
-                    continue;
-                }
-                if (input.split(" ")[0].equals("pwd")) {
-                    System.out.println(Path.of("").toAbsolutePath());
-                    System.out.print(PROMPT);
-                    continue;
-                }
-
-                // external command (non-pipe)
-                if (checkExternal(input)) {
-                    List<String> argv = tokenizeArgs(input);
-                    ProcessBuilder pb = new ProcessBuilder(argv);
-                    pb.directory(new File(System.getProperty("user.dir")));
-                    Process proc = pb.start();
-                    proc.getInputStream().transferTo(System.out);
-                    System.out.print(PROMPT);
+                } else if (Env.isNameStart(n)) {
+                    int j = i + 1;
+                    while (j < s.length() && Env.isNamePart(s.charAt(j)))
+                        j++;
+                    String v = env().get(s.substring(i + 1, j));
+                    appendValue(out, v == null ? "" : v, inD, whole);
+                    i = j - 1;
                     continue;
                 }
+            }
+            out.append(c);
+        }
+        return out.toString();
+    }
 
-                // minimal `type`/`exit`/fallback
-                String head4 = input.length() >= 4 ? input.substring(0, 4) : input;
-                if (head4.equals("type")) {
-                    String str = input.length() > 5 ? input.substring(5) : "";
-                    if (str.equals("echo") || str.equals("exit") || str.equals("pwd") || str.equals("type")
-                            || str.equals("history")) {
-                        System.out.println(str + " is a shell builtin");
-                    } else {
-                        System.out.println(Builtins.findOnPath(str));
-                    }
-                } else if (head4.equals("echo")) {
-                    System.out.println(input.substring(5));
-                } else if (head4.equals("exit")) {
-                    if (histFile != null)
-                        history.saveAll(histFile);
-                    System.exit(0);
-                } else {
-                    System.out.println(input + ": not found");
-                }
-                System.out.print(PROMPT);
+    static String parameter(String expr) {
+        if (expr.equals("?"))
+            return String.valueOf(Context.current().lastStatus);
+        if (expr.startsWith("#") && Env.isName(expr.substring(1))) {
+            String v = env().get(expr.substring(1));
+            return String.valueOf(v == null ? 0 : v.length());
+        }
+        int k = 0;
+        while (k < expr.length() && Env.isNamePart(expr.charAt(k)))
+            k++;
+        String name = expr.substring(0, k);
+        String v = !name.isEmpty() && name.chars().allMatch(Character::isDigit) ? positional(Integer.parseInt(name))
+                : env().get(name);
+        String rest = expr.substring(k);
+        boolean unsetOrEmpty = v == null || v.isEmpty();
+        if (rest.startsWith(":-"))
+            return unsetOrEmpty ? rest.substring(2) : v;
+        if (rest.startsWith(":+"))
+            return unsetOrEmpty ? "" : rest.substring(2);
+        if (rest.startsWith(":=")) {
+            if (unsetOrEmpty) {
+                env().set(name, rest.substring(2));
+                return rest.substring(2);
             }
+            return v;
         }
+        if (rest.startsWith("-"))
+            return v == null ? rest.substring(1) : v;
+        return v == null ? "" : v;
     }
 
-    static void usePipe(String input, Builtins sharedBuiltins) throws Exception {
-        List<List<String>> segments = splitPipeline(input);
-        List<Proc> processes = new ArrayList<>();
+    static String positional(int i) {
+        List<String> positional = Context.current().positional;
+        return i >= 1 && i <= positional.size() ? positional.get(i - 1) : "";
+    }
+
+    static void appendValue(StringBuilder out, String v, boolean inD) {
+        appendValue(out, v, inD, inD);
+    }
+
+    // whole: the value stays one word; outside double quotes that takes escaping its blanks as well
+    static void appendValue(StringBuilder out, String v, boolean inD, boolean whole) {
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (inD ? (c == '"' || c == '\\' || c == '$')
+                    : "'\"\\|;&<>$".indexOf(c) >= 0 || whole && Character.isWhitespace(c))
+                out.append('\\');
+            out.append(c);
+        }
+    }
+
+    // unquoted output is split into words, so its newlines become plain separators
+    static void appendSubst(StringBuilder out, String v, boolean inD, boolean whole) {
+        appendValue(out, whole ? v : v.replace('\n', ' '), inD, whole);
+    }
 
+    static boolean isAssignment(String word) {
+        int eq = word.indexOf('=');
+        return eq > 0 && Env.isName(word.substring(0, eq));
+    }
+
+    static int usePipe(String input, Builtins sharedBuiltins) throws Exception {
+        return usePipe(input, sharedBuiltins, null);
+    }
+
+    // when started is non-null it receives the stages, which are then sampled for timing while they run
+    static int usePipe(String input, Builtins sharedBuiltins, List<Proc> started) throws Exception {
+        List<Proc> processes = stages(splitPipeline(input), sharedBuiltins);
+        if (started != null)
+            started.addAll(processes);
+        return startPipe(processes, started != null);
+    }
+
+    static boolean isPipeBuiltin(String cmd) {
+        return cmd.equals("echo") || cmd.equals("type") || cmd.equals("cd") || cmd.equals("pwd")
+                || cmd.equals("cat") || cmd.equals("export") || cmd.equals("unset") || cmd.equals("shellstats")
+                || cmd.equals("alias") || cmd.equals("unalias") || cmd.equals("tee") || cmd.equals("sort")
+                || cmd.equals("find") || cmd.equals("coproc");
+    }
+
+    static List<Proc> stages(List<List<String>> segments, Builtins sharedBuiltins) throws IOException {
+        Context ctx = Context.current();
+        List<Proc> processes = new ArrayList<>();
         for (List<String> seg : segments) {
             if (seg.isEmpty())
                 continue;
             String cmd = seg.get(0);
-            if (cmd.equals("echo") || cmd.equals("type") || cmd.equals("cd") || cmd.equals("pwd")) {
-                processes.add(new BuiltinProc(cmd, seg.subList(1, seg.size()), sharedBuiltins));
-            } else {
-                processes.add(new ExternalProc(seg, new File(System.getProperty("user.dir")), System.getenv()));
-            }
+            if (isPipeBuiltin(cmd))
+                processes.add(new BuiltinProc(cmd, seg.subList(1, seg.size()), sharedBuiltins, ctx));
+            else
+                processes.add(new ExternalProc(seg, ctx));
         }
-        startPipe(processes);
+        return processes;
     }
 
     static int startPipe(List<Proc> ps) throws Exception {
+        return startPipe(ps, false);
+    }
+
+    static int startPipe(List<Proc> ps, boolean sample) throws Exception {
+        return startPipe(ps, sample, System.out);
+    }
+
+    static int startPipe(List<Proc> ps, boolean sample, OutputStream out) throws Exception {
+        return startPipe(ps, sample, Context.current().stdin, out);
+    }
+
+    // in, when given, is pumped into the first stage and closed at its end; otherwise the first stage gets EOF
+    static int startPipe(List<Proc> ps, boolean sample, InputStream in, OutputStream out) throws Exception {
         if (ps.isEmpty())
             return 0;
         for (Proc p : ps)
             p.start();
+        Thread sampler = sample ? sampler(ps) : null;
 
         List<Thread> pumps = new ArrayList<>();
         for (int i = 0; i < ps.size() - 1; i++) {
-            pumps.add(pump(ps.get(i).stdout(), ps.get(i + 1).stdin(), true));
+            pumps.add(pump(ps.get(i).stdout(), ps.get(i + 1).stdin(), true, (i + 1) + "|" + (i + 2)));
         }
-        Thread lastOut = pump(ps.get(ps.size() - 1).stdout(), System.out, false);
+        Thread lastOut = pump(ps.get(ps.size() - 1).stdout(), out, false, ps.size() + ">stdout");
 
         List<Thread> errPumps = new ArrayList<>();
-        for (Proc p : ps)
-            errPumps.add(pump(p.stderr(), System.err, false));
+        for (int i = 0; i < ps.size(); i++)
+            errPumps.add(pump(ps.get(i).stderr(), System.err, false, (i + 1) + ">stderr"));
 
-        IO.closeQuietly(ps.get(0).stdin());
+        if (in != null)
+            pumps.add(pump(in, ps.get(0).stdin(), true, "stdin>1"));
+        else
+            IO.closeQuietly(ps.get(0).stdin());
 
         int code = 0;
         for (Proc p : ps)
@@ -876,20 +1414,59 @@ public class Main {
         lastOut.join();
         for (Thread t : errPumps)
             t.join();
+        if (sampler != null)
+            sampler.interrupt();
         return code;
     }
 
+    static Thread sampler(List<Proc> ps) {
+        Thread t = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (Proc p : ps)
+                    p.sample();
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "stage-sampler");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
     static Thread pump(InputStream in, OutputStream out, boolean closeDest) {
+        return pump(in, out, closeDest, null);
+    }
+
+    static Thread pump(InputStream in, OutputStream out, boolean closeDest, String label) {
+        Trace.Record rec = label == null ? null : Trace.current();
         Thread t = new Thread(() -> {
             final byte[] buf = new byte[8192];
+            ShellEvents.Pump event = ShellEvents.on() ? new ShellEvents.Pump() : null;
+            if (event != null)
+                event.begin();
+            long total = 0;
             try {
                 int n;
                 while ((n = in.read(buf)) != -1) {
                     out.write(buf, 0, n);
                     out.flush();
+                    total += n;
                 }
             } catch (IOException ignored) {
             } finally {
+                Metrics.bytesPumped.add(total);
+                if (rec != null)
+                    rec.pump(label, total);
+                if (event != null) {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.bytes = total;
+                        event.commit();
+                    }
+                }
                 if (closeDest)
                     IO.closeQuietly(out);
                 IO.closeQuietly(in);
@@ -900,13 +1477,13 @@ public class Main {
         return t;
     }
 
-    static void redirect(String input, boolean error, boolean append) throws IOException, InterruptedException {
+    static int redirect(String input, boolean error, boolean append) throws IOException, InterruptedException {
         String[] inputs = input.split(" ");
         if (inputs[0].equals("echo")) {
             // parse echo args + destination
             Deque<String> dq = new ArrayDeque<>();
             String dest = "";
-            for (int i = 0; i < input.length();) {
+            for (int i = 4; i < input.length();) {
                 if (input.charAt(i) == '\'') {
                     int j = ++i;
                     StringBuilder sb = new StringBuilder();
@@ -927,6 +1504,13 @@ public class Main {
                 } else if (input.charAt(i) == '>') {
                     dest = input.substring(i + 2);
                     break;
+                } else if (!Character.isWhitespace(input.charAt(i))) {
+                    // an unquoted word runs to the next blank, quote or '>'
+                    int j = i;
+                    while (j < input.length() && "'\"> \t".indexOf(input.charAt(j)) < 0)
+                        j++;
+                    dq.offerLast(input.substring(i, j));
+                    i = j;
                 } else {
                     i++;
                 }
@@ -942,7 +1526,7 @@ public class Main {
                     outBuf.append(' ');
             }
 
-            Path outPath = Path.of(dest);
+            Path outPath = Context.current().resolve(dest);
             Path parent = outPath.getParent();
             if (parent != null && !Files.exists(parent))
                 Files.createDirectories(parent);
@@ -957,7 +1541,7 @@ public class Main {
                     Files.write(outPath, new byte[0],
                             StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
                 }
-                return;
+                return 0;
             } else {
                 outBuf.append('\n');
                 if (append) {
@@ -967,7 +1551,7 @@ public class Main {
                     Files.write(outPath, outBuf.toString().getBytes(StandardCharsets.UTF_8),
                             StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
                 }
-                return;
+                return 0;
             }
         }
 
@@ -977,7 +1561,7 @@ public class Main {
                 String lhs = input.substring(0, gt).trim();
                 String right = input.substring(gt + 1).trim();
                 String dest = unquote(firstToken(right));
-                Path out = Path.of(dest);
+                Path out = Context.current().resolve(dest);
                 Path parent = out.getParent();
                 if (parent != null && !Files.exists(parent))
                     Files.createDirectories(parent);
@@ -986,10 +1570,12 @@ public class Main {
                 String exe = PathUtil.resolveOnPath(argv[0]);
                 if (exe == null) {
                     System.out.println(argv[0] + ": not found");
+                    return 127;
                 } else {
                     argv[0] = exe;
                     ProcessBuilder pb = new ProcessBuilder(argv);
-                    pb.directory(new File(System.getProperty("user.dir")));
+                    pb.directory(Context.current().cwd.toFile());
+                    env().applyTo(pb);
                     if (error) {
                         if (append)
                             pb.redirectError(ProcessBuilder.Redirect.appendTo(out.toFile()));
@@ -1004,23 +1590,23 @@ public class Main {
                         pb.redirectError(ProcessBuilder.Redirect.INHERIT);
                     }
                     pb.redirectInput(ProcessBuilder.Redirect.INHERIT);
-                    Process p = pb.start();
-                    p.waitFor();
+                    Process p = Metrics.start(pb);
+                    return p.waitFor();
                 }
             } else {
                 ProcessBuilder pb = new ProcessBuilder(input.trim().split("\\s+"));
-                pb.directory(new File(System.getProperty("user.dir")));
+                pb.directory(Context.current().cwd.toFile());
+                env().applyTo(pb);
                 pb.inheritIO();
-                Process p = pb.start();
-                p.waitFor();
+                Process p = Metrics.start(pb);
+                return p.waitFor();
             }
-            return;
         }
 
         if (inputs[0].equals("cat")) {
             int gt = input.lastIndexOf('>');
             if (gt == -1)
-                return;
+                return 0;
             int j = gt - 1;
             while (j >= 0 && Character.isWhitespace(input.charAt(j)))
                 j--;
@@ -1028,41 +1614,163 @@ public class Main {
             String lhs = input.substring(0, oneRedir ? j : gt).trim();
             String rhs = input.substring(gt + 1).trim();
             String dest = unquote(firstToken(rhs));
-            Path out = Path.of(dest);
+            Path out = Context.current().resolve(dest);
             Path parent = out.getParent();
             if (parent != null && !Files.exists(parent))
                 Files.createDirectories(parent);
 
             String srcPart = lhs.startsWith("cat") ? lhs.substring(3).trim() : lhs;
             List<String> sources = tokenizeArgs(srcPart);
+            if (Cat.hasOptions(sources))
+                return redirectAny(input, error, append);
             if (sources.isEmpty()) {
-                Files.write(out, new byte[0], StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                return;
+                // no files: its stdin, which is EOF unless this runs inside >(...)
+                try (OutputStream f = Files.newOutputStream(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+                    stdin().transferTo(f);
+                }
+                return 0;
             }
 
-            List<String> argv = new ArrayList<>();
-            String catExe = PathUtil.resolveOnPath("cat");
-            argv.add(catExe != null ? catExe : "cat");
-            argv.addAll(sources);
-            ProcessBuilder pb = new ProcessBuilder(argv);
-            pb.directory(new File(System.getProperty("user.dir")));
             if (error) {
-                if (append)
-                    pb.redirectError(ProcessBuilder.Redirect.appendTo(out.toFile()));
-                else
-                    pb.redirectError(ProcessBuilder.Redirect.to(out.toFile()));
-                pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-            } else {
-                if (append)
-                    pb.redirectOutput(ProcessBuilder.Redirect.appendTo(out.toFile()));
-                else
-                    pb.redirectOutput(out.toFile());
-                pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+                int rc = 0;
+                try (OutputStream errOut = Files.newOutputStream(out, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+                    System.out.flush();
+                    for (String src : sources) {
+                        try {
+                            Cat.toChannel(Cat.resolve(src), Cat.stdout());
+                        } catch (java.nio.file.NoSuchFileException e) {
+                            errOut.write(("cat: " + src + ": No such file or directory\n").getBytes());
+                            rc = 1;
+                        }
+                    }
+                }
+                return rc;
+            }
+            return Cat.toFile(sources, out, append, System.err);
+        }
+        return redirectAny(input, error, append);
+    }
+
+    // any other command: builtins run in-process with the file as their stdout (stderr for 2>), external commands
+    // get it through ProcessBuilder so the kernel writes it directly; the other stream still reaches the session
+    static int redirectAny(String input, boolean error, boolean append) throws IOException, InterruptedException {
+        Context ctx = Context.current();
+        // the caller spots '>' without regard to quotes; a quoted one is an argument and there's no redirect
+        int gt = unquotedIndex(input, '>');
+        String lhs = gt < 0 ? input.trim() : input.substring(0, gt).trim();
+        if (gt >= 0 && !error && (lhs.equals("1") || lhs.endsWith(" 1")))
+            lhs = lhs.substring(0, lhs.length() - 1).trim();
+        List<String> words = tokenizeArgs(lhs);
+        if (gt < 0)
+            return words.isEmpty() ? 0 : unredirected(ctx, words);
+        String dest = unquote(firstToken(input.substring(gt + 1).trim()));
+        if (dest.isEmpty()) {
+            System.err.println("syntax error near unexpected token `newline'");
+            return 2;
+        }
+        Path target = ctx.resolve(dest);
+        if (words.isEmpty() || functions().containsKey(words.get(0))) {
+            // the target is created (or truncated) either way, as in sh
+            Files.newOutputStream(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING).close();
+            // functions print through System.out, which can't be pointed at a file for one call
+            if (!words.isEmpty()) {
+                System.err.println(words.get(0) + ": redirecting a function's output is not supported");
+                return 1;
             }
-            pb.redirectInput(ProcessBuilder.Redirect.INHERIT);
-            Process p = pb.start();
-            p.waitFor();
+            return 0;
+        }
+        String cmd = words.get(0);
+        if (isPipeBuiltin(cmd)) {
+            try (OutputStream f = new java.io.BufferedOutputStream(Files.newOutputStream(target,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING))) {
+                return builtins.runBuiltin(ctx, cmd, words.subList(1, words.size()), stdin(),
+                        error ? System.out : f, error ? f : System.err);
+            } finally {
+                System.out.flush();
+            }
+        }
+        String exe = PathUtil.resolveOnPath(cmd);
+        if (exe == null) {
+            System.out.println(cmd + ": not found");
+            return 127;
+        }
+        ProcessBuilder pb = new ProcessBuilder(words).directory(ctx.cwd.toFile());
+        env().applyTo(pb);
+        ProcessBuilder.Redirect file = append ? ProcessBuilder.Redirect.appendTo(target.toFile())
+                : ProcessBuilder.Redirect.to(target.toFile());
+        if (error)
+            pb.redirectError(file);
+        else
+            pb.redirectOutput(file);
+        Process p = Metrics.start(pb);
+        Thread feed = feed(ctx, p);
+        Thread other = error ? pump(p.getInputStream(), System.out, false) : pump(p.getErrorStream(), System.err, false);
+        int status = p.waitFor();
+        other.join();
+        if (feed != null)
+            feed.join();
+        return status;
+    }
+
+    static int unredirected(Context ctx, List<String> words) throws IOException, InterruptedException {
+        String cmd = words.get(0);
+        if (isPipeBuiltin(cmd))
+            return builtins.runBuiltin(ctx, cmd, words.subList(1, words.size()), stdin(), System.out, System.err);
+        if (PathUtil.resolveOnPath(cmd) == null) {
+            System.out.println(cmd + ": not found");
+            return 127;
+        }
+        ProcessBuilder pb = new ProcessBuilder(words).directory(ctx.cwd.toFile());
+        env().applyTo(pb);
+        Process p = Metrics.start(pb);
+        Thread feed = feed(ctx, p);
+        Thread out = pump(p.getInputStream(), System.out, false);
+        Thread err = pump(p.getErrorStream(), System.err, false);
+        int status = p.waitFor();
+        out.join();
+        err.join();
+        if (feed != null)
+            feed.join();
+        return status;
+    }
+
+    // what a command reads: the context's stdin, e.g. the FIFO of a >(...) list, or EOF
+    static InputStream stdin() {
+        InputStream in = Context.current().stdin;
+        return in != null ? in : InputStream.nullInputStream();
+    }
+
+    // copies the context's stdin to a started process, or gives it EOF; null when there is nothing to wait for
+    static Thread feed(Context ctx, Process p) throws IOException {
+        if (ctx.stdin == null) {
+            p.getOutputStream().close();
+            return null;
         }
+        return pump(ctx.stdin, p.getOutputStream(), true);
+    }
+
+    // index of the first c outside quotes, or -1
+    static int unquotedIndex(String s, char c) {
+        boolean inS = false, inD = false, esc = false;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (esc)
+                esc = false;
+            else if (ch == '\\' && !inS)
+                esc = true;
+            else if (ch == '\'' && !inD)
+                inS = !inS;
+            else if (ch == '"' && !inS)
+                inD = !inD;
+            else if (ch == c && !inS && !inD)
+                return i;
+        }
+        return -1;
     }
 
     static String firstToken(String s) {
@@ -1079,35 +1787,31 @@ public class Main {
     }
 
     static void addToTrie(Trie trie) {
-        String path = System.getenv("PATH");
-        if (path == null)
-            return;
-        for (String dir : path.split(File.pathSeparator)) {
-            File d = new File(dir);
-            if (!d.isDirectory())
-                continue;
-            File[] matches = d.listFiles(f -> f.isFile() && f.canExecute());
-            if (matches == null)
-                continue;
-            for (File f : matches)
-                trie.insert(f.getName());
+        ShellEvents.PathScan event = ShellEvents.on() ? new ShellEvents.PathScan() : null;
+        if (event != null)
+            event.begin();
+        int n = 0;
+        for (List<String> names : execIndex.snapshot(env().get("PATH"))) {
+            for (String name : names)
+                trie.insert(name);
+            n += names.size();
+        }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.executables = n;
+                event.commit();
+            }
         }
     }
 
-    static List<String> fileOnTab(String str) {
+    // runs on an index thread, so the caller's PATH is passed in
+    static List<String> fileOnTab(String str, String path) {
         List<String> files = new ArrayList<>();
-        String path = System.getenv("PATH");
-        if (path == null || path.isEmpty())
-            return files;
-        for (String dir : path.split(File.pathSeparator)) {
-            File d = new File(dir);
-            if (!d.isDirectory())
-                continue;
-            File[] matches = d.listFiles(f -> f.isFile() && f.getName().startsWith(str) && f.canExecute());
-            if (matches == null)
-                continue;
-            for (File f : matches)
-                files.add(f.getName());
+        for (List<String> names : execIndex.snapshot(path)) {
+            for (String name : names)
+                if (name.startsWith(str))
+                    files.add(name);
         }
         Collections.sort(files);
         return files;
@@ -1121,39 +1825,48 @@ public class Main {
         return PathUtil.resolveOnPath(name);
     }
 
-    static String[] convert(String input) {
-        Deque<String> out = new ArrayDeque<>();
-        int i = 0;
-        while (i < input.length()) {
-            if (input.charAt(i) == '/') {
-                StringBuilder sb = new StringBuilder();
-                while (i < input.length() && input.charAt(i) != ' ')
-                    sb.append(input.charAt(i++));
-                out.offerLast(sb.toString());
-            } else if (input.charAt(i) == '\'') {
-                i++;
-                StringBuilder sb = new StringBuilder();
-                while (i < input.length() && input.charAt(i) != '\'')
-                    sb.append(input.charAt(i++));
-                out.offerLast(sb.toString());
-            } else if (input.charAt(i) == '"') {
-                i++;
-                StringBuilder sb = new StringBuilder();
-                while (i < input.length() && input.charAt(i) != '"')
-                    sb.append(input.charAt(i++));
-                out.offerLast(sb.toString());
-            }
-            i++;
+    static boolean isBuiltin(String name) {
+        return Builtins.isBuiltin(name);
+    }
+
+    // runs the program of the same name for options a builtin doesn't implement; -1 when there is none. Its stdout
+    // is copied on this thread, as a pump that ends before the builtin does would leave out's reader with a dead
+    // writer
+    static int external(Context ctx, List<String> argv, InputStream in, OutputStream out, OutputStream err)
+            throws IOException {
+        ExternalProc p = new ExternalProc(argv, ctx);
+        try {
+            p.start();
+        } catch (IOException e) {
+            return -1;
+        }
+        Thread feed = Main.pump(in, p.stdin(), true);
+        Thread errors = Main.pump(p.stderr(), err, false);
+        try {
+            p.stdout().transferTo(out);
+            out.flush();
+        } catch (IOException e) {
+            // out's reader went away; the program gets its EPIPE when it writes next
+            Main.IO.closeQuietly(p.stdout());
+        }
+        try {
+            int status = p.waitFor();
+            errors.join();
+            feed.interrupt();
+            return status;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            p.destroy();
+            return 130;
         }
-        return out.toArray(new String[0]);
     }
 
-    static void content(String file) {
+    static int content(String file) {
         try {
-            Process p = new ProcessBuilder("cat", file).redirectErrorStream(true).start();
-            p.getInputStream().transferTo(System.out);
+            return Cat.toTerminal(List.of(file));
         } catch (IOException e) {
             e.printStackTrace();
+            return 1;
         }
     }
 
@@ -1203,39 +1916,6 @@ public class Main {
         return sb.toString();
     }
 
-    static void change(String input) {
-        String path = System.getProperty("user.dir");
-        Deque<String> dq = new ArrayDeque<>(Arrays.asList(path.split("/")));
-        if (!dq.isEmpty())
-            dq.pollFirst();
-        int ind = 0;
-        while (ind < input.length()) {
-            if (ind + 2 < input.length() && input.substring(ind, ind + 3).equals("../")) {
-                if (!dq.isEmpty())
-                    dq.pollLast();
-                ind += 3;
-            } else if (input.charAt(ind) == '/') {
-                ind++;
-                StringBuilder sb = new StringBuilder();
-                while (ind < input.length() && input.charAt(ind) != '/')
-                    sb.append(input.charAt(ind++));
-                dq.offer(sb.toString());
-            } else {
-                ind++;
-            }
-        }
-        StringBuilder sb = new StringBuilder();
-        while (!dq.isEmpty())
-            sb.append('/').append(dq.pollFirst());
-        System.setProperty("user.dir", sb.length() == 0 ? "/" : sb.toString());
-    }
-
-    public static String exists(String input) {
-        Path p = Path.of(input);
-        File f = p.toFile();
-        return (f.exists() && f.isDirectory()) ? f.getAbsolutePath() : null;
-    }
-
     static boolean checkExternal(String input) {
         List<String> toks = tokenizeArgs(input);
         if (toks.isEmpty())
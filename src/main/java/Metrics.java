@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+final class Metrics {
+    // spawn latency buckets: [0] < 64us, then one power of two per bucket, the last one open-ended
+    static final int BUCKETS = 16;
+
+    static final LongAdder commands = new LongAdder();
+    static final LongAdder spawns = new LongAdder();
+    static final LongAdder spawnFailures = new LongAdder();
+    static final LongAdder spawnNanos = new LongAdder();
+    static final LongAdder[] spawnLatency = new LongAdder[BUCKETS];
+    static final LongAdder bytesPumped = new LongAdder();
+    static final LongAdder fanOutStalls = new LongAdder();
+    static final LongAdder listingHits = new LongAdder();
+    static final LongAdder listingMisses = new LongAdder();
+    static final LongAdder patternHits = new LongAdder();
+    static final LongAdder patternMisses = new LongAdder();
+    static final LongAdder pathScans = new LongAdder();
+
+    static {
+        for (int i = 0; i < BUCKETS; i++)
+            spawnLatency[i] = new LongAdder();
+    }
+
+    private Metrics() {
+    }
+
+    static Process start(ProcessBuilder pb) throws IOException {
+        ShellEvents.Spawn event = ShellEvents.on() ? new ShellEvents.Spawn() : null;
+        if (event != null)
+            event.begin();
+        long t0 = System.nanoTime();
+        Process p;
+        try {
+            p = pb.start();
+        } catch (IOException e) {
+            spawnFailures.increment();
+            throw e;
+        }
+        recordSpawn(System.nanoTime() - t0);
+        Timing.Meter meter = Context.current().meter;
+        if (meter != null)
+            meter.add(p);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.command = String.join(" ", pb.command());
+                event.pid = p.pid();
+                event.commit();
+            }
+        }
+        return p;
+    }
+
+    static void recordSpawn(long nanos) {
+        spawns.increment();
+        spawnNanos.add(nanos);
+        spawnLatency[bucket(nanos / 1000)].increment();
+    }
+
+    static int bucket(long micros) {
+        int b = 64 - Long.numberOfLeadingZeros(micros >> 5);
+        return Math.min(Math.max(b - 1, 0), BUCKETS - 1);
+    }
+
+    static String bucketLabel(int b) {
+        if (b == BUCKETS - 1)
+            return ">= " + human(64L << (b - 1));
+        return "< " + human(64L << b);
+    }
+
+    private static String human(long micros) {
+        return micros >= 1000 ? (micros / 1000) + "ms" : micros + "us";
+    }
+
+    private static String ratio(LongAdder hits, LongAdder misses) {
+        long h = hits.sum(), m = misses.sum();
+        return h + " hits / " + m + " misses" + (h + m == 0 ? "" : String.format(" (%.1f%%)", 100.0 * h / (h + m)));
+    }
+
+    static void report(OutputStream out) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        long n = spawns.sum();
+        sb.append("commands run:      ").append(commands.sum()).append('\n');
+        sb.append("processes spawned: ").append(n).append(" (").append(spawnFailures.sum()).append(" failed)\n");
+        if (n > 0) {
+            sb.append(String.format("spawn latency:     mean %.1fus%n", spawnNanos.sum() / 1000.0 / n));
+            for (int b = 0; b < BUCKETS; b++) {
+                long c = spawnLatency[b].sum();
+                if (c > 0)
+                    sb.append(String.format("  %-10s %d%n", bucketLabel(b), c));
+            }
+        }
+        sb.append("bytes pumped:      ").append(bytesPumped.sum()).append('\n');
+        sb.append("fan-out stalls:    ").append(fanOutStalls.sum()).append('\n');
+        sb.append("PATH scans:        ").append(pathScans.sum()).append('\n');
+        sb.append("listing cache:     ").append(ratio(listingHits, listingMisses)).append('\n');
+        sb.append("glob patterns:     ").append(ratio(patternHits, patternMisses)).append('\n');
+        sb.append("trace drops:       ").append(Trace.dropped.sum()).append('\n');
+        out.write(sb.toString().getBytes());
+        out.flush();
+    }
+}
@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+final class PathCompleter {
+    static final int DISPLAY_CAP = 100;
+
+    static final class Matches {
+        final DirCache.Listing listing;
+        final String typed;
+        final List<Integer> idx = new ArrayList<>();
+
+        Matches(DirCache.Listing listing, String typed) {
+            this.listing = listing;
+            this.typed = typed;
+        }
+
+        int size() {
+            return idx.size();
+        }
+
+        String name(int i) {
+            return listing.names[idx.get(i)];
+        }
+
+        boolean isDir(int i) {
+            return listing.isDir(idx.get(i));
+        }
+
+        String label(int i) {
+            return isDir(i) ? name(i) + "/" : name(i);
+        }
+
+        String commonPrefix() {
+            String first = name(0);
+            int n = first.length();
+            for (int i = 1; i < size() && n > typed.length(); i++) {
+                String s = name(i);
+                int k = 0;
+                while (k < n && k < s.length() && s.charAt(k) == first.charAt(k))
+                    k++;
+                n = k;
+            }
+            return first.substring(0, n);
+        }
+    }
+
+    private final DirCache listings;
+
+    PathCompleter(DirCache listings) {
+        this.listings = listings;
+    }
+
+    // where the word under the cursor starts: after the last blank that isn't escaped with a backslash, so
+    // "cat sp\ a" completes "sp\ a" as one word
+    static int wordStart(CharSequence line) {
+        int start = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\')
+                i++;
+            else if (c == ' ' || c == '\t')
+                start = i + 1;
+        }
+        return Math.min(start, line.length());
+    }
+
+    Matches complete(String word, Path cwd, String home) {
+        int slash = word.lastIndexOf('/');
+        String dirPart = word.substring(0, slash + 1);
+        String prefix = word.substring(slash + 1);
+        Path dir;
+        if (dirPart.startsWith("~/") && home != null)
+            dir = Path.of(home).resolve(dirPart.substring(2));
+        else
+            dir = cwd.resolve(dirPart);
+        DirCache.Listing l = listings.list(dir);
+        if (l == null)
+            return null;
+        Matches m = new Matches(l, prefix);
+        boolean dotOk = prefix.startsWith(".");
+        for (int i = l.firstWithPrefix(prefix); i < l.names.length && l.names[i].startsWith(prefix); i++) {
+            if (!dotOk && l.names[i].startsWith("."))
+                continue;
+            m.idx.add(i);
+        }
+        return m;
+    }
+
+    static void show(int count, int width, IntFunction<String> label, KeyReader in) throws IOException {
+        System.out.println();
+        if (count > DISPLAY_CAP) {
+            System.out.print("Display all " + count + " possibilities? (y or n)");
+            System.out.flush();
+            int k = in.readKey();
+            System.out.println();
+            if (k != 'y' && k != 'Y' && k != ' ')
+                return;
+        }
+        int cols = dimension("COLUMNS", 80), rows = dimension("LINES", 24);
+        int perRow = Math.max(1, cols / (width + 2));
+        int lines = (count + perRow - 1) / perRow;
+        int budget = rows - 1;
+        for (int line = 0; line < lines; line++) {
+            if (budget == 0) {
+                System.out.print("--More--");
+                System.out.flush();
+                int k = in.readKey();
+                Main.ANSI.clearLine();
+                if (k == 'q' || k == 'Q' || k == -1)
+                    return;
+                budget = k == Main.KEY_ENTER ? 1 : rows - 1;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int c = 0; c < perRow; c++) {
+                int i = line * perRow + c;
+                if (i >= count)
+                    break;
+                String s = label.apply(i);
+                sb.append(s);
+                if (c < perRow - 1)
+                    sb.append(" ".repeat(Math.max(2, width + 2 - s.length())));
+            }
+            System.out.println(sb.toString().stripTrailing());
+            budget--;
+        }
+    }
+
+    static int dimension(String var, int fallback) {
+        String v = Main.env().get(var);
+        try {
+            return v == null ? fallback : Math.max(1, Integer.parseInt(v.trim()));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+
+interface Proc {
+    OutputStream stdin();
+
+    InputStream stdout();
+
+    InputStream stderr();
+
+    void start() throws Exception;
+
+    int waitFor() throws InterruptedException;
+
+    // wall time from start to exit, -1 while running
+    default long elapsedNanos() {
+        return -1;
+    }
+
+    // {user, sys}, null when unknown
+    default long[] cpuNanos() {
+        return null;
+    }
+
+    default void sample() {
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// <(...) and >(...): the word becomes the path of a FIFO in a private directory and the inner list runs on its own
+// thread with its stdout (or stdin) on that FIFO, so data streams between the two sides without touching disk.
+// The command that used the word is followed by finish(), which waits for the inner lists and recycles the FIFOs
+final class ProcSubst {
+    static final int FIFO_BATCH = 8;
+    static final long WAKE_RETRY_MILLIS = 50;
+
+    private static Path dir;
+    private static final Deque<Path> freeFifos = new ArrayDeque<>();
+    private static int created;
+
+    static final class Job {
+        final Path fifo;
+        final boolean input;
+        final Thread thread;
+        // set once the inner side has its end of the FIFO, after which opening the other end can't block
+        volatile boolean opened;
+
+        Job(Path fifo, boolean input, String cmd, Context ctx) {
+            this.fifo = fifo;
+            this.input = input;
+            this.thread = new Thread(() -> run(cmd, ctx), "procsubst-" + fifo.getFileName());
+            this.thread.setDaemon(true);
+        }
+
+        // opening a FIFO waits for the other side, so the list only starts once the outer command opens the path
+        private void run(String cmd, Context ctx) {
+            try {
+                if (input) {
+                    try (OutputStream out = new FileOutputStream(fifo.toFile())) {
+                        opened = true;
+                        Subst.runList(ctx, cmd, null, out);
+                    }
+                } else {
+                    try (InputStream in = new FileInputStream(fifo.toFile())) {
+                        opened = true;
+                        Subst.runList(ctx, cmd, in, null);
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println(e.getMessage());
+            } finally {
+                opened = true;
+            }
+        }
+    }
+
+    private ProcSubst() {
+    }
+
+    // index of the ')' closing the "<(" or ">(" at i, or -1
+    static int end(String s, int i) {
+        return Subst.end(s, i);
+    }
+
+    static boolean startsAt(String s, int i) {
+        char c = s.charAt(i);
+        return (c == '<' || c == '>') && i + 1 < s.length() && s.charAt(i + 1) == '('
+                && (i == 0 || Character.isWhitespace(s.charAt(i - 1))) && end(s, i) > 0;
+    }
+
+    // starts the inner list of "<(cmd)" (input) or ">(cmd)" and returns the path that stands for it
+    static String open(String cmd, boolean input) throws IOException {
+        Context ctx = Context.current();
+        Job job = new Job(takeFifo(), input, cmd, ctx.fork());
+        ctx.procSubsts.add(job);
+        job.thread.start();
+        return job.fifo.toString();
+    }
+
+    // after the command that used the paths: a side that was never opened is opened and closed here so its
+    // list sees EOF (or a closed pipe) and ends, then every list is waited for. The FIFO is opened read-write,
+    // which on Linux never blocks and stands in for either end, so it can't hang when the list has opened and
+    // gone in the meantime; a list that has not reached its open yet is woken again after a short wait
+    static void finish(Context ctx) throws InterruptedException {
+        if (ctx.procSubsts.isEmpty())
+            return;
+        List<Job> done = new ArrayList<>(ctx.procSubsts);
+        ctx.procSubsts.clear();
+        for (Job job : done) {
+            while (!job.opened && job.thread.isAlive()) {
+                try {
+                    new RandomAccessFile(job.fifo.toFile(), "rw").close();
+                } catch (IOException ignored) {
+                }
+                job.thread.join(WAKE_RETRY_MILLIS);
+            }
+        }
+        for (Job job : done) {
+            job.thread.join();
+            release(job.fifo);
+        }
+    }
+
+    private static synchronized Path takeFifo() throws IOException {
+        if (freeFifos.isEmpty()) {
+            if (dir == null) {
+                // createTempDirectory makes it 0700, so nobody else can open the FIFOs
+                dir = Files.createTempDirectory("shell-subst");
+                Runtime.getRuntime().addShutdownHook(new Thread(ProcSubst::cleanup));
+            }
+            List<String> cmd = new ArrayList<>(List.of("mkfifo", "-m", "600"));
+            for (int i = 0; i < FIFO_BATCH; i++) {
+                Path p = dir.resolve(String.valueOf(created++));
+                cmd.add(p.toString());
+                freeFifos.add(p);
+            }
+            // its complaints go to this shell's stderr, which in a daemon is the session's rather than the process's
+            Process p = new ProcessBuilder(cmd).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            p.getOutputStream().close();
+            p.getErrorStream().transferTo(System.err);
+            try {
+                if (p.waitFor() != 0)
+                    throw new IOException("mkfifo failed");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        return freeFifos.poll();
+    }
+
+    private static synchronized void release(Path fifo) {
+        freeFifos.add(fifo);
+    }
+
+    private static synchronized void cleanup() {
+        for (int i = 0; i < created; i++)
+            dir.resolve(String.valueOf(i)).toFile().delete();
+        dir.toFile().delete();
+    }
+}
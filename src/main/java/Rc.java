@@ -0,0 +1,112 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32;
+
+// ~/.shellrc (or $SHELLRC) is run at startup; its parsed tree is cached on disk keyed by mtime and size,
+// with a content checksum so a touched-but-unchanged file still hits
+final class Rc {
+    static final int MAGIC = 0x53485243;
+    // 2: loops, conditionals and case are parsed into their own nodes
+    // 3: return is its own node
+    static final int VERSION = 3;
+
+    private Rc() {
+    }
+
+    static Path file() {
+        String rc = Main.env().get("SHELLRC");
+        if (rc != null)
+            return rc.isEmpty() ? null : Path.of(rc);
+        String home = Main.env().get("HOME");
+        return home == null ? null : Path.of(home, ".shellrc");
+    }
+
+    // under the shell's own HOME, like the rc file itself, so a daemon session never shares the daemon's cache;
+    // null (no caching) when there is neither XDG_CACHE_HOME nor HOME
+    static Path cacheFile(Path rc) {
+        String xdg = Main.env().get("XDG_CACHE_HOME");
+        String home = Main.env().get("HOME");
+        Path dir;
+        if (xdg != null && !xdg.isEmpty())
+            dir = Path.of(xdg, "shell");
+        else if (home != null && !home.isEmpty())
+            dir = Path.of(home, ".cache", "shell");
+        else
+            return null;
+        return dir.resolve(Integer.toHexString(rc.toAbsolutePath().toString().hashCode()) + ".rc");
+    }
+
+    static void run() {
+        Path rc = file();
+        if (rc == null || !Files.isRegularFile(rc))
+            return;
+        try {
+            Ast.Node node = load(rc);
+            if (node != null)
+                node.run();
+        } catch (IllegalArgumentException e) {
+            System.err.println(rc + ": " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println(rc + ": " + e);
+        }
+    }
+
+    static Ast.Node load(Path rc) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(rc, BasicFileAttributes.class);
+        long mtime = attrs.lastModifiedTime().toMillis();
+        long size = attrs.size();
+        Path cache = cacheFile(rc);
+        long cachedCrc = -1;
+        Ast.Node cached = null;
+        if (cache != null && Files.isRegularFile(cache)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache)))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    long cMtime = in.readLong(), cSize = in.readLong();
+                    cachedCrc = in.readLong();
+                    cached = Ast.read(in);
+                    if (cMtime == mtime && cSize == size)
+                        return cached;
+                }
+            } catch (IOException | RuntimeException e) {
+                // unreadable or corrupt: a miss, and the rc is parsed again
+                cached = null;
+                cachedCrc = -1;
+            }
+        }
+        byte[] bytes = Files.readAllBytes(rc);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        Ast.Node node = cached != null && crc.getValue() == cachedCrc ? cached
+                : Ast.parse(new String(bytes, StandardCharsets.UTF_8));
+        if (cache != null)
+            store(cache, mtime, bytes.length, crc.getValue(), node);
+        return node;
+    }
+
+    // written to a temp file and moved into place, so concurrent shells never read half a cache
+    static void store(Path cache, long mtime, long size, long crc, Ast.Node node) {
+        try {
+            Files.createDirectories(cache.getParent());
+            Path tmp = Files.createTempFile(cache.getParent(), "rc", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(mtime);
+                out.writeLong(size);
+                out.writeLong(crc);
+                Ast.write(node, out);
+            }
+            Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // no cache this time; the rc file still ran
+        }
+    }
+}
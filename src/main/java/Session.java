@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// a client attached to the daemon; it runs on its own thread against its own Context, so sessions run commands
+// at the same time without seeing each other's cwd, variables or exit status
+final class Session {
+    private static final InheritableThreadLocal<Session> current = new InheritableThreadLocal<>();
+
+    final SocketChannel channel;
+    final OutputStream out;
+    final Context context;
+    // aliases and functions are per client too; the rc file defines them afresh for each one
+    final Map<String, Ast.Alias> aliases = new ConcurrentHashMap<>();
+    final Map<String, Ast.Node> functions = new ConcurrentHashMap<>();
+    // from the client's TERM, as the local shell decides from its own
+    final boolean bracketedPaste;
+
+    // thrown by exit inside a session instead of stopping the JVM
+    static final class Exit extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int code;
+
+        Exit(int code) {
+            super(null, null, false, false);
+            this.code = code;
+        }
+    }
+
+    // clientEnv replaces the daemon's own environment for this session
+    Session(SocketChannel channel, String cwd, Map<String, String> clientEnv) {
+        this.channel = channel;
+        this.out = output(channel);
+        Env env = new Env(System.getenv());
+        for (String name : System.getenv().keySet())
+            if (!clientEnv.containsKey(name))
+                env.unset(name);
+        for (Map.Entry<String, String> e : clientEnv.entrySet())
+            if (!e.getValue().equals(System.getenv(e.getKey())))
+                env.export(e.getKey(), e.getValue());
+        this.context = new Context(Path.of(cwd), env);
+        String term = clientEnv.get("TERM");
+        this.bracketedPaste = term != null && !term.equals("dumb");
+    }
+
+    static Session current() {
+        return current.get();
+    }
+
+    void attach() {
+        current.set(this);
+        context.attach();
+    }
+
+    // for long-lived threads that serve every session and must not keep the one that happened to start them
+    static void detach() {
+        current.remove();
+        Context.detach();
+    }
+
+    // where a write to System.out or System.err from this thread ends up, as Routed decides it, for handing to
+    // threads that are not this session's; any other stream is returned as it is
+    static OutputStream resolve(OutputStream out) {
+        OutputStream captured = out == System.out ? Context.current().stdout : null;
+        if (captured != null)
+            return captured;
+        Session s = current.get();
+        return s != null && (out == System.out || out == System.err) ? s.out : out;
+    }
+
+    // Channels.newInputStream/newOutputStream share the channel's blocking lock, so a pending read would stall
+    // every write; these go straight to the channel, whose reads and writes are independent
+    static InputStream input(SocketChannel ch) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : ch.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    static OutputStream output(SocketChannel ch) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                while (buf.hasRemaining())
+                    ch.write(buf);
+            }
+        };
+    }
+
+    // a session's keys, read ahead by their own thread so KeyReader can wait a bounded time for the rest of an
+    // escape sequence; a blocking socket read can't time out
+    static final class Keys extends InputStream implements KeyReader.Timed {
+        private static final byte[] EOF = new byte[0];
+
+        private final InputStream in;
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(16);
+        private volatile boolean closed;
+        private byte[] chunk;
+        private int pos;
+
+        Keys(InputStream in) {
+            this.in = in;
+            // reads only; it inherits no session or context from the thread that creates it
+            Thread t = new Thread(null, this::fill, "session-keys", 0, false);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private void fill() {
+            byte[] b = new byte[8192];
+            byte[] c = EOF;
+            try {
+                int n;
+                while ((n = in.read(b)) != -1) {
+                    c = Arrays.copyOf(b, n);
+                    while (!chunks.offer(c, 100, TimeUnit.MILLISECONDS))
+                        if (closed)
+                            return;
+                }
+                c = EOF;
+            } catch (IOException | InterruptedException e) {
+                c = EOF;
+            }
+            try {
+                while (!closed && !chunks.offer(c, 100, TimeUnit.MILLISECONDS)) {
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return len == 0 ? 0 : read(b, off, len, -1);
+        }
+
+        // millis < 0 waits for as long as it takes
+        @Override
+        public int read(byte[] b, int off, int len, long millis) throws IOException {
+            if (chunk == EOF)
+                return -1;
+            if (chunk == null || pos == chunk.length) {
+                try {
+                    chunk = millis < 0 ? chunks.take() : chunks.poll(millis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                pos = 0;
+                if (chunk == null)
+                    return 0;
+                if (chunk == EOF)
+                    return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        // what was read ahead, so a completion waiting on a slow PATH scan still notices the next key
+        @Override
+        public int available() {
+            if (chunk == EOF)
+                return 0;
+            if (chunk != null && pos < chunk.length)
+                return chunk.length - pos;
+            byte[] next = chunks.peek();
+            return next == null ? 0 : next.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            in.close();
+        }
+    }
+
+    // System.out/err: writes go to the session of the calling thread (pump threads inherit it); stdout goes to the
+    // context's capture first, when a substitution has set one
+    static final class Routed extends OutputStream {
+        private final OutputStream fallback;
+        private final boolean stdout;
+
+        Routed(OutputStream fallback, boolean stdout) {
+            this.fallback = fallback;
+            this.stdout = stdout;
+        }
+
+        private OutputStream target() {
+            OutputStream captured = stdout ? Context.current().stdout : null;
+            if (captured != null)
+                return captured;
+            Session s = current.get();
+            return s != null ? s.out : fallback;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+}
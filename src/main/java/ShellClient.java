@@ -0,0 +1,70 @@
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+
+// thin client for a running daemon: sends cwd and environment, then relays raw terminal bytes both ways
+//   java -cp <shell jar> ShellClient [socket]
+final class ShellClient {
+    public static void main(String[] args) throws Exception {
+        Path socket = args.length > 0 ? Path.of(args[0]) : Daemon.socketPath();
+        SocketChannel ch = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            ch.connect(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            System.err.println("shell: cannot connect to " + socket + ": " + e.getMessage());
+            System.exit(1);
+        }
+        String saved = System.console() != null ? stty("-g").trim() : null;
+        if (saved != null)
+            stty("-echo -icanon min 1");
+        try {
+            StringBuilder header = new StringBuilder(System.getProperty("user.dir")).append('\n');
+            for (Map.Entry<String, String> e : System.getenv().entrySet())
+                if (e.getValue().indexOf('\n') < 0)
+                    header.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+            header.append('\n');
+            ch.write(ByteBuffer.wrap(header.toString().getBytes(StandardCharsets.UTF_8)));
+
+            OutputStream toServer = Session.output(ch);
+            Thread keys = new Thread(() -> {
+                byte[] buf = new byte[8192];
+                try {
+                    InputStream in = new FileInputStream(FileDescriptor.in);
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        toServer.write(buf, 0, n);
+                        toServer.flush();
+                    }
+                    ch.shutdownOutput();
+                } catch (IOException ignored) {
+                }
+            }, "client-keys");
+            keys.setDaemon(true);
+            keys.start();
+
+            FileOutputStream out = new FileOutputStream(FileDescriptor.out);
+            Session.input(ch).transferTo(out);
+        } finally {
+            if (saved != null)
+                stty(saved);
+        }
+        System.exit(0);
+    }
+
+    static String stty(String args) throws IOException, InterruptedException {
+        Process p = new ProcessBuilder("/bin/sh", "-c", "stty " + args + " < /dev/tty").start();
+        String out = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        p.waitFor();
+        return out;
+    }
+}
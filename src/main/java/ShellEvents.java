@@ -0,0 +1,71 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// JDK Flight Recorder events; free unless a recording enables them (java -XX:StartFlightRecording ...)
+final class ShellEvents {
+    private ShellEvents() {
+    }
+
+    // the first Event subclass to load pulls in the JFR runtime (a few hundred ms), so call sites only create events
+    // once a recording has started, either at launch or later through jcmd
+    static boolean on() {
+        return FlightRecorder.isInitialized();
+    }
+
+    @Name("shell.PathScan")
+    @Label("PATH Scan")
+    @Category("Shell")
+    static final class PathScan extends Event {
+        @Label("Executables")
+        int executables;
+    }
+
+    @Name("shell.Parse")
+    @Label("Parse")
+    @Category("Shell")
+    static final class Parse extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Input Length")
+        int length;
+    }
+
+    @Name("shell.Spawn")
+    @Label("Process Spawn")
+    @Category("Shell")
+    static final class Spawn extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("PID")
+        long pid;
+    }
+
+    @Name("shell.Pump")
+    @Label("Stream Pump")
+    @Category("Shell")
+    static final class Pump extends Event {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("shell.HistoryIO")
+    @Label("History I/O")
+    @Category("Shell")
+    static final class HistoryIO extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("File")
+        String file;
+
+        @Label("Entries")
+        int entries;
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+// end-to-end load on a real shell: a child JVM runs Main with commands written to its stdin, and every command is
+// followed by an echo of a marker, so a command's latency is the time until its marker comes back. The child's
+// RSS, threads and open fds are read from /proc while it runs; fds and threads are compared against the first
+// round, so whatever a round leaves behind shows up as a leak
+//   java -cp <shell jar> SoakBench [minutes] [bulkMB] [report.jsonl]
+// minutes 0 runs one round; with a report file one JSON line per run is appended, labelled with $SOAK_LABEL
+final class SoakBench {
+    static final int TINY = 1000, BULK = 3, DEEP = 20, DEPTH = 16;
+    // a command that has not printed its marker by then is taken as hung, and the child is killed
+    static final long TIMEOUT_NANOS = 300_000_000_000L;
+
+    static final class Workload {
+        final String name;
+        final List<String> commands;
+        final long bytesPerCommand;
+        long[] lat = new long[64];
+        int n;
+        long nanos;
+
+        Workload(String name, List<String> commands, long bytesPerCommand) {
+            this.name = name;
+            this.commands = commands;
+            this.bytesPerCommand = bytesPerCommand;
+        }
+
+        void record(long l) {
+            if (n == lat.length)
+                lat = Arrays.copyOf(lat, n * 2);
+            lat[n++] = l;
+            nanos += l;
+        }
+
+        double percentile(double p) {
+            long[] s = Arrays.copyOf(lat, n);
+            Arrays.sort(s);
+            return n == 0 ? 0 : s[Math.min(n - 1, (int) (n * p))] / 1e6;
+        }
+    }
+
+    // peak and current readings of the child, refreshed by the sampler thread
+    static volatile long peakRssKb, peakThreads, threads, fds;
+
+    private final Process proc;
+    private final BufferedReader out;
+    private final OutputStream in;
+    private int marker;
+    // System.nanoTime() by which the running command must finish, 0 between commands
+    private volatile long deadline;
+    private volatile boolean timedOut;
+
+    SoakBench(Process p) {
+        this.proc = p;
+        this.in = p.getOutputStream();
+        this.out = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    // readLine cannot time out, so a hung command is ended by killing the child, which ends its stdout
+    Thread watchdog() {
+        Thread t = new Thread(() -> {
+            while (proc.isAlive()) {
+                long d = deadline;
+                if (d != 0 && System.nanoTime() - d > 0) {
+                    timedOut = true;
+                    proc.destroyForcibly();
+                    return;
+                }
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "soak-watchdog");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    public static void main(String[] args) throws Exception {
+        double minutes = args.length > 0 ? Double.parseDouble(args[0]) : 0;
+        int bulkMb = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        Path report = args.length > 2 ? Path.of(args[2]) : null;
+
+        Path dir = Files.createTempDirectory("soak");
+        Path big = dir.resolve("big.txt"), small = dir.resolve("small.txt");
+        long bigBytes = fill(big, (long) bulkMb << 20);
+        long smallBytes = fill(small, 1 << 20);
+        List<Workload> loads = workloads(bigBytes, smallBytes);
+
+        String java = ProcessHandle.current().info().command().orElse("java");
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "Main")
+                .directory(dir.toFile()).redirectError(dir.resolve("stderr.txt").toFile());
+        pb.environment().put("SHELLRC", "");
+        pb.environment().remove("HISTFILE");
+        Process p = pb.start();
+        Thread sampler = sampler(p.pid());
+        SoakBench shell = new SoakBench(p);
+        shell.watchdog();
+
+        System.out.printf("soak: %s, bulk file %d MB, %s%n", dir, bulkMb,
+                minutes > 0 ? minutes + " min" : "one round");
+        shell.round(loads, false);
+        shell.settle(p.pid());
+        long fds0 = fds, threads0 = threads;
+        long t0 = System.nanoTime();
+        int rounds = 0;
+        do {
+            shell.round(loads, true);
+            rounds++;
+        } while (System.nanoTime() - t0 < minutes * 60e9);
+        long wall = System.nanoTime() - t0;
+        shell.settle(p.pid());
+        long fds1 = fds, threads1 = threads;
+
+        shell.in.write("exit\n".getBytes());
+        shell.in.flush();
+        p.waitFor();
+        sampler.interrupt();
+
+        System.out.printf("%-6s %8s %10s %10s %10s %10s %10s%n", "load", "cmds", "cmds/s", "MB/s", "p50(ms)",
+                "p99(ms)", "max(ms)");
+        for (Workload w : loads)
+            System.out.printf("%-6s %8d %10.1f %10.1f %10.2f %10.2f %10.2f%n", w.name, w.n, w.n / (w.nanos / 1e9),
+                    w.bytesPerCommand * w.n / (w.nanos / 1e9) / (1 << 20), w.percentile(0.5), w.percentile(0.99),
+                    w.percentile(1.0));
+        System.out.printf("rounds %d in %.1fs, peak RSS %d MB, threads %d -> %d (peak %d), fds %d -> %d "
+                + "(leaked %d), stderr %d bytes%n", rounds, wall / 1e9, peakRssKb >> 10, threads0, threads1,
+                peakThreads, fds0, fds1, Math.max(0, fds1 - fds0), Files.size(dir.resolve("stderr.txt")));
+        if (report != null)
+            append(report, loads, rounds, wall, Math.max(0, fds1 - fds0), Math.max(0, threads1 - threads0));
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    static List<Workload> workloads(long bigBytes, long smallBytes) {
+        List<String> tiny = new ArrayList<>();
+        String[] mix = { "echo hi", "pwd", "true", "x=1", "echo $x", "cd .", "type cat" };
+        for (int i = 0; i < TINY; i++)
+            tiny.add(mix[i % mix.length]);
+        List<String> bulk = new ArrayList<>();
+        for (int i = 0; i < BULK; i++)
+            bulk.add("cat big.txt | grep needle | wc -l");
+        // in-process cat and /bin/cat alternate, so every other link crosses a BuiltinProc/ExternalProc boundary
+        StringBuilder deepCmd = new StringBuilder("cat small.txt");
+        for (int i = 1; i < DEPTH - 1; i++)
+            deepCmd.append(i % 2 == 1 ? " | /bin/cat" : " | cat");
+        deepCmd.append(" | wc -l");
+        List<String> deep = new ArrayList<>();
+        for (int i = 0; i < DEEP; i++)
+            deep.add(deepCmd.toString());
+        return List.of(new Workload("tiny", tiny, 0), new Workload("bulk", bulk, bigBytes),
+                new Workload("deep", deep, smallBytes));
+    }
+
+    void round(List<Workload> loads, boolean record) throws IOException {
+        for (Workload w : loads) {
+            for (String cmd : w.commands) {
+                long l = run(cmd);
+                if (record)
+                    w.record(l);
+            }
+        }
+    }
+
+    // lets pump and builtin threads of the last command wind down, then takes a reading
+    void settle(long pid) throws IOException, InterruptedException {
+        run("true");
+        Thread.sleep(500);
+        sample(pid);
+    }
+
+    long run(String cmd) throws IOException {
+        String mark = "@@" + (++marker);
+        long t0 = System.nanoTime();
+        deadline = t0 + TIMEOUT_NANOS;
+        try {
+            in.write((cmd + "\necho " + mark + "\n").getBytes(StandardCharsets.UTF_8));
+            in.flush();
+            String line;
+            while ((line = out.readLine()) != null)
+                if (line.equals(mark))
+                    return System.nanoTime() - t0;
+        } catch (IOException e) {
+            if (!timedOut)
+                throw e;
+        } finally {
+            deadline = 0;
+        }
+        throw new IOException((timedOut ? "timed out after " + TIMEOUT_NANOS / 1_000_000_000 + "s: "
+                : "shell exited during: ") + cmd);
+    }
+
+    // lines of text, every seventh one holding the word grep looks for
+    static long fill(Path file, long bytes) throws IOException {
+        long written = 0;
+        try (Writer w = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            for (long i = 0; written < bytes; i++) {
+                String line = i % 7 == 0 ? "line " + i + " needle in the haystack\n"
+                        : "line " + i + " just some filler text for the pipeline\n";
+                w.write(line);
+                written += line.length();
+            }
+        }
+        return written;
+    }
+
+    static Thread sampler(long pid) {
+        Thread t = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                sample(pid);
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "soak-sampler");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    static void sample(long pid) {
+        try {
+            for (String l : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+                if (l.startsWith("VmHWM:"))
+                    peakRssKb = Math.max(peakRssKb, Long.parseLong(l.replaceAll("\\D", "")));
+                else if (l.startsWith("Threads:"))
+                    threads = Long.parseLong(l.replaceAll("\\D", ""));
+            }
+            peakThreads = Math.max(peakThreads, threads);
+            try (Stream<Path> s = Files.list(Path.of("/proc", String.valueOf(pid), "fd"))) {
+                fds = s.count();
+            }
+        } catch (IOException | RuntimeException e) {
+            // gone, or not Linux
+        }
+    }
+
+    static void append(Path report, List<Workload> loads, int rounds, long wall, long leakedFds,
+            long leakedThreads) throws IOException {
+        String label = System.getenv().getOrDefault("SOAK_LABEL", "");
+        StringBuilder sb = new StringBuilder("{\"label\":").append(Trace.quote(label))
+                .append(",\"time\":").append(System.currentTimeMillis() / 1000)
+                .append(",\"rounds\":").append(rounds)
+                .append(",\"wallMs\":").append(wall / 1_000_000);
+        for (Workload w : loads)
+            sb.append(String.format(Locale.ROOT, ",\"%s\":{\"cmds\":%d,\"perSec\":%.1f,\"p50Ms\":%.3f,"
+                    + "\"p99Ms\":%.3f}", w.name, w.n, w.n / (w.nanos / 1e9), w.percentile(0.5), w.percentile(0.99)));
+        sb.append(",\"peakRssKb\":").append(peakRssKb)
+                .append(",\"peakThreads\":").append(peakThreads)
+                .append(",\"leakedThreads\":").append(leakedThreads)
+                .append(",\"leakedFds\":").append(leakedFds).append("}\n");
+        Files.writeString(report, sb, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
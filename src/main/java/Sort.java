@@ -0,0 +1,488 @@
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// sort [-r] [-n] [-u] [file...]: lines compare as unsigned bytes (the C locale's order), or by their leading number
+// with -n. Input is read into a buffer of up to $SORT_MEM bytes (64 MiB by default), the lines in it are sorted
+// where they lie by a fork/join merge sort over (offset, length) records, and input that doesn't fit is spilled to
+// temp files as sorted runs that are then merged k ways. Any other option (-k, -t, -f, -o...) runs the system's
+// sort with the same arguments instead
+final class Sort {
+    static final int DEFAULT_MEM = 64 << 20;
+    static final int INITIAL = 64 << 10;
+    // a fork/join task sorts this many records or fewer on its own
+    static final int SEQUENTIAL = 8192;
+
+    private final boolean reverse, numeric, unique;
+
+    // one buffer's lines: record i is buf[off[i], off[i] + len[i]), without its newline
+    private final class Chunk {
+        final byte[] buf;
+        final int n;
+        final int[] off, len;
+        final double[] keys;
+        // the first eight bytes of each line, big-endian and zero padded, so most comparisons never touch buf
+        final long[] prefix;
+        final int[] order;
+
+        Chunk(byte[] buf, int end) {
+            this.buf = buf;
+            int lines = 0;
+            for (int i = 0; i < end; i++)
+                if (buf[i] == '\n')
+                    lines++;
+            if (end > 0 && buf[end - 1] != '\n')
+                lines++;
+            n = lines;
+            off = new int[n];
+            len = new int[n];
+            for (int i = 0, start = 0, r = 0; r < n; i++) {
+                if (i == end || buf[i] == '\n') {
+                    off[r] = start;
+                    len[r++] = i - start;
+                    start = i + 1;
+                }
+            }
+            keys = numeric ? new double[n] : null;
+            prefix = numeric ? null : new long[n];
+            if (numeric)
+                Arrays.parallelSetAll(keys, i -> numericKey(buf, off[i], len[i]));
+            else
+                Arrays.parallelSetAll(prefix, i -> prefix(buf, off[i], len[i]));
+            order = new int[n];
+            for (int i = 0; i < n; i++)
+                order[i] = i;
+        }
+
+        int compare(int a, int b) {
+            if (!numeric && prefix[a] != prefix[b]) {
+                int c = Long.compareUnsigned(prefix[a], prefix[b]);
+                return reverse ? -c : c;
+            }
+            return Sort.this.compare(buf, off[a], len[a], numeric ? keys[a] : 0,
+                    buf, off[b], len[b], numeric ? keys[b] : 0);
+        }
+
+        void sort() {
+            if (n > 1)
+                ForkJoinPool.commonPool().invoke(new SortTask(this, order, new int[n], 0, n));
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            int prev = -1;
+            for (int i = 0; i < n; i++) {
+                int r = order[i];
+                if (unique && prev >= 0 && compare(prev, r) == 0)
+                    continue;
+                out.write(buf, off[r], len[r]);
+                out.write('\n');
+                prev = r;
+            }
+        }
+    }
+
+    // stable merge sort of order[lo, hi); halves above SEQUENTIAL records are sorted as parallel subtasks
+    private static final class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final transient Chunk c;
+        final int[] a, tmp;
+        final int lo, hi;
+
+        SortTask(Chunk c, int[] a, int[] tmp, int lo, int hi) {
+            this.c = c;
+            this.a = a;
+            this.tmp = tmp;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= SEQUENTIAL) {
+                sort(lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new SortTask(c, a, tmp, lo, mid), new SortTask(c, a, tmp, mid, hi));
+            merge(lo, mid, hi);
+        }
+
+        private void sort(int from, int to) {
+            if (to - from <= 16) {
+                for (int i = from + 1; i < to; i++) {
+                    int r = a[i], j = i - 1;
+                    while (j >= from && c.compare(a[j], r) > 0) {
+                        a[j + 1] = a[j];
+                        j--;
+                    }
+                    a[j + 1] = r;
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            sort(from, mid);
+            sort(mid, to);
+            merge(from, mid, to);
+        }
+
+        private void merge(int from, int mid, int to) {
+            if (c.compare(a[mid - 1], a[mid]) <= 0)
+                return;
+            System.arraycopy(a, from, tmp, from, to - from);
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to)
+                a[k++] = c.compare(tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++];
+            while (i < mid)
+                a[k++] = tmp[i++];
+            while (j < to)
+                a[k++] = tmp[j++];
+        }
+    }
+
+    // a spilled run being merged: its current line is buf[off, off + len), scanned for in a block of the file that
+    // the next call may overwrite, so it stays valid until then
+    private final class Run {
+        final InputStream in;
+        final int index;
+        byte[] buf = new byte[1 << 16];
+        int pos, lim, off, len;
+        double key;
+
+        Run(Path file, int index) throws IOException {
+            this.in = Files.newInputStream(file);
+            this.index = index;
+        }
+
+        boolean next() throws IOException {
+            int i = pos;
+            while (true) {
+                while (i < lim && buf[i] != '\n')
+                    i++;
+                if (i < lim) {
+                    off = pos;
+                    len = i - pos;
+                    pos = i + 1;
+                    break;
+                }
+                // no newline after pos: the partial line moves to the front and the rest of it is read after it
+                if (pos > 0) {
+                    System.arraycopy(buf, pos, buf, 0, lim - pos);
+                    i -= pos;
+                    lim -= pos;
+                    pos = 0;
+                }
+                if (lim == buf.length)
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                int n = in.read(buf, lim, buf.length - lim);
+                if (n < 0) {
+                    if (lim == 0)
+                        return false;
+                    off = 0;
+                    len = lim;
+                    pos = lim;
+                    break;
+                }
+                lim += n;
+            }
+            if (numeric)
+                key = numericKey(buf, off, len);
+            return true;
+        }
+    }
+
+    // remembers whether the output side failed, so a reader going away isn't reported as a sort error
+    private static final class Out extends FilterOutputStream {
+        boolean failed;
+
+        Out(OutputStream out) {
+            super(new BufferedOutputStream(out, 1 << 16));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+
+    private Sort(boolean reverse, boolean numeric, boolean unique) {
+        this.reverse = reverse;
+        this.numeric = numeric;
+        this.unique = unique;
+    }
+
+    static int run(Context ctx, List<String> args, InputStream stdin, OutputStream stdout, OutputStream err)
+            throws IOException {
+        boolean reverse = false, numeric = false, unique = false;
+        List<Path> files = new ArrayList<>();
+        for (String a : args) {
+            if (a.length() > 1 && a.charAt(0) == '-') {
+                for (int i = 1; i < a.length(); i++) {
+                    char f = a.charAt(i);
+                    if (f == 'r') {
+                        reverse = true;
+                    } else if (f == 'n') {
+                        numeric = true;
+                    } else if (f == 'u') {
+                        unique = true;
+                    } else {
+                        List<String> argv = new ArrayList<>(args);
+                        argv.add(0, "sort");
+                        int status = Main.external(ctx, argv, stdin, stdout, err);
+                        if (status >= 0)
+                            return status;
+                        err.write(("sort: invalid option -- '" + f + "'\n").getBytes());
+                        err.flush();
+                        return 2;
+                    }
+                }
+                continue;
+            }
+            Path p = a.equals("-") ? null : ctx.resolve(a);
+            if (p != null && !Files.isReadable(p)) {
+                err.write(("sort: cannot read: " + a + ": No such file or directory\n").getBytes());
+                err.flush();
+                return 2;
+            }
+            files.add(p);
+        }
+        InputStream in = files.isEmpty() ? stdin : concat(files, stdin);
+        Out out = new Out(stdout);
+        try {
+            new Sort(reverse, numeric, unique).sort(in, out, mem(ctx));
+            out.flush();
+            return 0;
+        } catch (IOException e) {
+            if (out.failed)
+                return 141;
+            err.write(("sort: " + (e instanceof NoSuchFileException ? e.getMessage() + ": No such file or directory"
+                    : e.getMessage()) + "\n").getBytes());
+            err.flush();
+            return 2;
+        } finally {
+            if (!files.isEmpty())
+                in.close();
+        }
+    }
+
+    static int mem(Context ctx) {
+        String v = ctx.env.get("SORT_MEM");
+        if (v != null && !v.isEmpty()) {
+            try {
+                return Math.max(INITIAL, Integer.parseInt(v));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return DEFAULT_MEM;
+    }
+
+    // files opened one at a time as the previous one is used up; "-" is stdin
+    private static InputStream concat(List<Path> files, InputStream stdin) {
+        return new SequenceInputStream(Collections.enumeration(files.stream().<InputStream>map(p -> {
+            if (p == null)
+                return stdin;
+            return new InputStream() {
+                private InputStream f;
+
+                private InputStream f() throws IOException {
+                    if (f == null)
+                        f = Files.newInputStream(p);
+                    return f;
+                }
+
+                @Override
+                public int read() throws IOException {
+                    return f().read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return f().read(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (f != null)
+                        f.close();
+                }
+            };
+        }).toList()));
+    }
+
+    private void sort(InputStream in, OutputStream out, int mem) throws IOException {
+        byte[] buf = new byte[INITIAL];
+        int len = 0;
+        boolean eof = false;
+        List<Path> runs = new ArrayList<>();
+        try {
+            while (!eof) {
+                while (len < buf.length) {
+                    int n = in.read(buf, len, buf.length - len);
+                    if (n < 0) {
+                        eof = true;
+                        break;
+                    }
+                    len += n;
+                }
+                // the buffer only grows to the budget; short inputs never allocate all of it
+                if (!eof && buf.length < mem) {
+                    buf = Arrays.copyOf(buf, (int) Math.min(mem, buf.length * 2L));
+                    continue;
+                }
+                int end = eof ? len : lastNewline(buf, len) + 1;
+                if (end == 0) {
+                    // one line longer than the budget: it has to fit somewhere
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                    continue;
+                }
+                Chunk c = new Chunk(buf, end);
+                c.sort();
+                if (eof && runs.isEmpty()) {
+                    c.writeTo(out);
+                    return;
+                }
+                runs.add(spill(c));
+                System.arraycopy(buf, end, buf, 0, len - end);
+                len -= end;
+            }
+            merge(runs, out);
+        } finally {
+            for (Path p : runs)
+                Files.deleteIfExists(p);
+        }
+    }
+
+    private static int lastNewline(byte[] buf, int len) {
+        for (int i = len - 1; i >= 0; i--)
+            if (buf[i] == '\n')
+                return i;
+        return -1;
+    }
+
+    private Path spill(Chunk c) throws IOException {
+        Path run = Files.createTempFile("sort", ".run");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(run), 1 << 20)) {
+            c.writeTo(out);
+        }
+        return run;
+    }
+
+    private void merge(List<Path> files, OutputStream out) throws IOException {
+        PriorityQueue<Run> heap = new PriorityQueue<>(Math.max(1, files.size()), (a, b) -> {
+            int c = compare(a.buf, a.off, a.len, a.key, b.buf, b.off, b.len, b.key);
+            return c != 0 ? c : Integer.compare(a.index, b.index);
+        });
+        List<Run> open = new ArrayList<>();
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                Run r = new Run(files.get(i), i);
+                open.add(r);
+                if (r.next())
+                    heap.add(r);
+            }
+            byte[] last = null;
+            int lastLen = 0;
+            double lastKey = 0;
+            while (!heap.isEmpty()) {
+                Run r = heap.poll();
+                if (!unique || last == null || compare(last, 0, lastLen, lastKey, r.buf, r.off, r.len, r.key) != 0) {
+                    out.write(r.buf, r.off, r.len);
+                    out.write('\n');
+                    if (unique) {
+                        last = Arrays.copyOfRange(r.buf, r.off, r.off + r.len);
+                        lastLen = r.len;
+                        lastKey = r.key;
+                    }
+                }
+                if (r.next())
+                    heap.add(r);
+            }
+        } finally {
+            for (Run r : open)
+                r.in.close();
+        }
+    }
+
+    // with -u, lines with equal keys are duplicates; otherwise equal keys fall back to comparing bytes
+    private int compare(byte[] a, int ao, int al, double ak, byte[] b, int bo, int bl, double bk) {
+        int c = numeric ? Double.compare(ak, bk) : 0;
+        if (c == 0 && !(numeric && unique))
+            c = compareBytes(a, ao, al, b, bo, bl);
+        return reverse ? -c : c;
+    }
+
+    // lines are mostly short, where a plain loop beats Arrays.compareUnsigned's vectorized mismatch setup
+    static int compareBytes(byte[] a, int ao, int al, byte[] b, int bo, int bl) {
+        int n = Math.min(al, bl);
+        for (int i = 0; i < n; i++) {
+            int x = a[ao + i] & 0xFF, y = b[bo + i] & 0xFF;
+            if (x != y)
+                return x - y;
+        }
+        return al - bl;
+    }
+
+    static long prefix(byte[] b, int off, int len) {
+        long p = 0;
+        for (int i = 0; i < 8; i++)
+            p = (p << 8) | (i < len ? b[off + i] & 0xFF : 0);
+        return p;
+    }
+
+    // leading blanks, an optional minus sign, digits and an optional fraction; anything else counts as 0
+    static double numericKey(byte[] b, int off, int len) {
+        int i = off, end = off + len;
+        while (i < end && (b[i] == ' ' || b[i] == '\t'))
+            i++;
+        boolean neg = i < end && b[i] == '-';
+        if (neg)
+            i++;
+        double v = 0;
+        while (i < end && b[i] >= '0' && b[i] <= '9')
+            v = v * 10 + (b[i++] - '0');
+        if (i < end && b[i] == '.') {
+            double scale = 0.1;
+            for (i++; i < end && b[i] >= '0' && b[i] <= '9'; i++, scale /= 10)
+                v += (b[i] - '0') * scale;
+        }
+        return (neg ? -v : v) + 0.0;
+    }
+}
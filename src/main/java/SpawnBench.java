@@ -0,0 +1,65 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// spawn latency of /bin/true per launch strategy; each strategy runs in its own JVM because the
+// JDK reads jdk.lang.Process.launchMechanism once per process
+//   java -cp <shell jar> SpawnBench [iterations] [heapMB]
+final class SpawnBench {
+    static final List<String> STRATEGIES = List.of("POSIX_SPAWN", "FORK", "VFORK", "helper");
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int heapMb = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        if (args.length > 2) {
+            run(args[2], n);
+            return;
+        }
+        String java = ProcessHandle.current().info().command().orElse("java");
+        String cp = System.getProperty("java.class.path");
+        System.out.printf("%-12s %10s %10s %10s %10s%n", "strategy", "mean(us)", "p50(us)", "p99(us)", "max(us)");
+        for (String s : STRATEGIES) {
+            List<String> cmd = new ArrayList<>(List.of(java));
+            if (!s.equals("helper"))
+                cmd.add("-Djdk.lang.Process.launchMechanism=" + s);
+            if (heapMb > 0)
+                cmd.addAll(List.of("-Xms" + heapMb + "m", "-Xmx" + heapMb + "m", "-XX:+AlwaysPreTouch"));
+            cmd.addAll(List.of("-cp", cp, "SpawnBench", String.valueOf(n), String.valueOf(heapMb), s));
+            int rc = new ProcessBuilder(cmd).inheritIO().start().waitFor();
+            if (rc != 0)
+                System.out.printf("%-12s failed (exit %d)%n", s, rc);
+        }
+    }
+
+    static void run(String strategy, int n) throws Exception {
+        Context ctx = Context.current();
+        if (strategy.equals("helper"))
+            ctx.env.set("SHELL_LAUNCH", "helper");
+        List<String> argv = List.of("/bin/true");
+        for (int i = 0; i < Math.min(50, n); i++)
+            once(argv, ctx);
+        long[] lat = new long[n];
+        for (int i = 0; i < n; i++)
+            lat[i] = once(argv, ctx);
+        Arrays.sort(lat);
+        long sum = 0;
+        for (long l : lat)
+            sum += l;
+        System.out.printf("%-12s %10.1f %10.1f %10.1f %10.1f%n", strategy, sum / 1000.0 / n, lat[n / 2] / 1000.0,
+                lat[(int) (n * 0.99)] / 1000.0, lat[n - 1] / 1000.0);
+    }
+
+    // full round trip: spawn, close stdin, drain output, reap
+    static long once(List<String> argv, Context ctx) throws Exception {
+        long t0 = System.nanoTime();
+        ExternalProc p = new ExternalProc(argv, ctx);
+        p.start();
+        p.stdin().close();
+        p.stdout().readAllBytes();
+        p.stderr().readAllBytes();
+        p.stdout().close();
+        p.stderr().close();
+        p.waitFor();
+        return System.nanoTime() - t0;
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// a long-lived small shell that forks children on request, so the JVM never forks itself per command;
+// child stdio travels over FIFOs that are created in batches and recycled
+final class SpawnHelper {
+    static final int FIFO_BATCH = 32;
+
+    private static final String LOOP = "while IFS= read -r line; do eval \"$line\" & done";
+
+    private static SpawnHelper instance;
+
+    private final Process helper;
+    private final Writer requests;
+    private final Path dir;
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<Long, CompletableFuture<Integer>> pending = new ConcurrentHashMap<>();
+    private final Deque<Path[]> freeFifos = new ArrayDeque<>();
+    private int created;
+
+    static synchronized SpawnHelper get() throws IOException {
+        if (instance == null || !instance.helper.isAlive())
+            instance = new SpawnHelper();
+        return instance;
+    }
+
+    private SpawnHelper() throws IOException {
+        dir = Files.createTempDirectory("shell-spawn");
+        dir.toFile().deleteOnExit();
+        String sh = new File("/bin/bash").canExecute() ? "/bin/bash" : "/bin/sh";
+        ProcessBuilder pb = new ProcessBuilder(sh, "-c", LOOP);
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        helper = pb.start();
+        requests = new java.io.OutputStreamWriter(helper.getOutputStream(), StandardCharsets.UTF_8);
+        Thread reader = new Thread(this::readStatuses, "spawn-helper");
+        reader.setDaemon(true);
+        reader.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::cleanup));
+    }
+
+    private void readStatuses() {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(helper.getInputStream()))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int sp = line.indexOf(' ');
+                if (sp < 0)
+                    continue;
+                CompletableFuture<Integer> f = pending.remove(Long.parseLong(line.substring(0, sp)));
+                if (f != null)
+                    f.complete(Integer.parseInt(line.substring(sp + 1).trim()));
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        for (CompletableFuture<Integer> f : pending.values())
+            f.complete(127);
+    }
+
+    private void cleanup() {
+        helper.destroy();
+        File[] files = dir.toFile().listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.toFile().delete();
+    }
+
+    // argv containing newlines can't travel over the line protocol; those go through ProcessBuilder
+    static boolean canLaunch(List<String> argv) {
+        for (String a : argv)
+            if (a.indexOf('\n') >= 0 || a.indexOf('\0') >= 0)
+                return false;
+        return true;
+    }
+
+    private synchronized Path[] takeFifos() throws IOException {
+        if (freeFifos.isEmpty()) {
+            List<String> cmd = new ArrayList<>();
+            cmd.add("mkfifo");
+            for (int i = 0; i < FIFO_BATCH; i++) {
+                int n = created++;
+                Path[] set = { dir.resolve(n + ".in"), dir.resolve(n + ".out"), dir.resolve(n + ".err") };
+                for (Path p : set)
+                    cmd.add(p.toString());
+                freeFifos.add(set);
+            }
+            try {
+                if (new ProcessBuilder(cmd).inheritIO().start().waitFor() != 0)
+                    throw new IOException("mkfifo failed");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        return freeFifos.poll();
+    }
+
+    private synchronized void release(Path[] set) {
+        freeFifos.add(set);
+    }
+
+    static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    final class Child {
+        final long id;
+        final Path[] fifos;
+        final CompletableFuture<Integer> status = new CompletableFuture<>();
+        // three streams plus the exit; the FIFOs are recycled only after all of them, so no stale data can leak
+        private final AtomicInteger holds = new AtomicInteger(4);
+        // which FIFO spawn() is blocked opening, -1 once it has all three
+        private volatile int opening = -1;
+        OutputStream stdin;
+        InputStream stdout, stderr;
+
+        Child(long id, Path[] fifos) {
+            this.id = id;
+            this.fifos = fifos;
+            status.whenComplete((code, err) -> drop());
+        }
+
+        void drop() {
+            if (holds.decrementAndGet() == 0)
+                release(fifos);
+        }
+
+        InputStream in(Path p) throws IOException {
+            return new FilterInputStream(new FileInputStream(p.toFile())) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    if (!closed) {
+                        closed = true;
+                        drop();
+                    }
+                }
+            };
+        }
+
+        OutputStream out(Path p) throws IOException {
+            return new FilterOutputStream(new FileOutputStream(p.toFile())) {
+                private boolean closed;
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    if (!closed) {
+                        closed = true;
+                        drop();
+                    }
+                }
+            };
+        }
+
+        // the child's shell opens the FIFOs in the same order as spawn(), so if it (or the whole helper) exits first
+        // nobody ever opens the far ends; opening them here lets spawn() return a child that ends with no output
+        private void releaseOpens() {
+            for (int k = opening; k >= 0 && k < fifos.length; k++) {
+                try {
+                    (k == 0 ? new FileInputStream(fifos[k].toFile()) : new FileOutputStream(fifos[k].toFile())).close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        int waitFor() throws InterruptedException {
+            try {
+                return status.get();
+            } catch (ExecutionException e) {
+                return 127;
+            }
+        }
+    }
+
+    Child spawn(List<String> argv, File cwd, Map<String, String> overlay) throws IOException {
+        Child c = new Child(ids.incrementAndGet(), takeFifos());
+        c.opening = 0;
+        pending.put(c.id, c.status);
+        // the status comes back once the child is gone, which also covers the helper dying (readStatuses then fails
+        // everything pending); the side thread inherits nothing from the session
+        c.status.whenComplete((code, err) -> {
+            if (c.opening >= 0) {
+                Thread t = new Thread(null, c::releaseOpens, "spawn-release", 0, false);
+                t.setDaemon(true);
+                t.start();
+            }
+        });
+        StringBuilder sb = new StringBuilder("( exec <").append(quote(c.fifos[0].toString()))
+                .append(" >").append(quote(c.fifos[1].toString()))
+                .append(" 2>").append(quote(c.fifos[2].toString()))
+                .append("; cd ").append(quote(cwd.getPath())).append(" || exit 1");
+        for (Map.Entry<String, String> e : overlay.entrySet()) {
+            if (e.getValue() == null)
+                sb.append("; unset ").append(quote(e.getKey()));
+            else
+                sb.append("; export ").append(quote(e.getKey() + "=" + e.getValue()));
+        }
+        sb.append("; exec");
+        for (String a : argv)
+            sb.append(' ').append(quote(a));
+        sb.append(" ); echo \"").append(c.id).append(" $?\"\n");
+        synchronized (requests) {
+            requests.write(sb.toString());
+            requests.flush();
+        }
+        // same order as the redirections above, otherwise the opens deadlock
+        c.stdin = c.out(c.fifos[0]);
+        c.opening = 1;
+        c.stdout = c.in(c.fifos[1]);
+        c.opening = 2;
+        c.stderr = c.in(c.fifos[2]);
+        c.opening = -1;
+        return c;
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// $(...) and `...`: the inner list is parsed and run by the interpreter on a forked Context whose System.out is
+// pointed at the capture, so loops, conditionals, redirects, aliases and functions work there as at the prompt
+final class Subst {
+    static final int DEFAULT_MAX = 16 << 20;
+
+    // growable output buffer that keeps at most max bytes and silently drops the rest, so producers never block
+    static final class Capture extends OutputStream {
+        private final int max;
+        private byte[] buf = new byte[256];
+        private int len;
+        boolean truncated;
+
+        Capture(int max) {
+            this.max = max;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        // pumps of a background job can still be writing while the list's next command does
+        @Override
+        public synchronized void write(byte[] b, int off, int n) {
+            int keep = Math.min(n, max - len);
+            if (keep < n)
+                truncated = true;
+            if (keep <= 0)
+                return;
+            if (len + keep > buf.length)
+                buf = Arrays.copyOf(buf, (int) Math.min(max, Math.max((long) buf.length * 2, len + keep)));
+            System.arraycopy(b, off, buf, len, keep);
+            len += keep;
+        }
+
+        InputStream asInput() {
+            return new ByteArrayInputStream(buf, 0, len);
+        }
+
+        // trailing newlines are dropped, as in sh
+        String text() {
+            int end = len;
+            while (end > 0 && buf[end - 1] == '\n')
+                end--;
+            return new String(buf, 0, end, StandardCharsets.UTF_8);
+        }
+    }
+
+    private Subst() {
+    }
+
+    static int max() {
+        String v = Main.env().get("SUBST_MAX");
+        if (v != null && !v.isEmpty()) {
+            try {
+                return Math.max(0, Integer.parseInt(v));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return DEFAULT_MAX;
+    }
+
+    // index of the ')' closing the "$(" at i, or -1
+    static int end(String s, int i) {
+        int depth = 1;
+        boolean inS = false, inD = false, esc = false;
+        for (int j = i + 2; j < s.length(); j++) {
+            char c = s.charAt(j);
+            if (esc) {
+                esc = false;
+            } else if (c == '\\' && !inS) {
+                esc = true;
+            } else if (c == '\'' && !inD) {
+                inS = !inS;
+            } else if (c == '"' && !inS) {
+                inD = !inD;
+            } else if (!inS && !inD) {
+                if (c == '(')
+                    depth++;
+                else if (c == ')' && --depth == 0)
+                    return j;
+            }
+        }
+        return -1;
+    }
+
+    // index of the backtick closing the one at i, or -1
+    static int backtickEnd(String s, int i) {
+        for (int j = i + 1; j < s.length(); j++) {
+            char c = s.charAt(j);
+            if (c == '\\')
+                j++;
+            else if (c == '`')
+                return j;
+        }
+        return -1;
+    }
+
+    static String run(String cmd) {
+        Capture out = new Capture(max());
+        Context parent = Context.current();
+        // runs as a subshell would: a cd or assignment inside doesn't leak out
+        int status;
+        try {
+            status = runList(parent.fork(), cmd, parent.stdin, out);
+        } finally {
+            parent.attach();
+        }
+        parent.lastStatus = status;
+        if (out.truncated)
+            System.err.println("command substitution: output truncated to " + out.max + " bytes");
+        return out.text();
+    }
+
+    // runs cmd through the interpreter, like a line at the prompt, on sub attached to the calling thread, with its
+    // stdin and stdout (when out is not null) pointed at the given streams; for $(...), `...`, <(...) and >(...)
+    static int runList(Context sub, String cmd, InputStream in, OutputStream out) {
+        sub.stdin = in;
+        if (out != null)
+            sub.stdout = out;
+        sub.attach();
+        try {
+            return Main.runList(cmd);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 130;
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            return 127;
+        }
+    }
+}
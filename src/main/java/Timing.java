@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+final class Timing {
+    // USER_HZ; 100 on every mainstream Linux build
+    static final long TICK_NANOS = 10_000_000L;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // {user, sys} of the current thread, or null when the JVM can't measure it
+    static long[] threadCpu() {
+        if (!threads.isCurrentThreadCpuTimeSupported())
+            return null;
+        long total = threads.getCurrentThreadCpuTime();
+        long user = threads.getCurrentThreadUserTime();
+        if (total < 0 || user < 0)
+            return null;
+        return new long[] { user, total - user };
+    }
+
+    // {user, sys} of the given process from /proc/<pid>/stat
+    static long[] procCpu(long pid) {
+        long[] f = statFields(Path.of("/proc", String.valueOf(pid), "stat"), 11);
+        return f == null ? null : new long[] { f[0] * TICK_NANOS, f[1] * TICK_NANOS };
+    }
+
+    // {user, sys} of every child this JVM has reaped so far
+    static long[] childrenCpu() {
+        long[] f = statFields(Path.of("/proc/self/stat"), 13);
+        return f == null ? null : new long[] { f[0] * TICK_NANOS, f[1] * TICK_NANOS };
+    }
+
+    // CPU of the processes one timed command starts. childrenCpu() counts every child the JVM reaped, which in
+    // daemon mode includes other sessions' commands, so there each child is sampled like a pipeline stage instead;
+    // the last 10 ms before it exits, and its own children, are missed
+    static final class Meter {
+        private final Map<Process, long[]> children = new ConcurrentHashMap<>();
+        // the meter of an enclosing time, which counts these processes too
+        private final Meter outer;
+        private final Thread sampler;
+
+        Meter(Meter outer) {
+            this.outer = outer;
+            sampler = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    sample();
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "time-sampler");
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+
+        void add(Process p) {
+            children.putIfAbsent(p, new long[2]);
+            sample();
+            if (outer != null)
+                outer.add(p);
+        }
+
+        private void sample() {
+            for (Map.Entry<Process, long[]> e : children.entrySet()) {
+                long[] c = e.getKey().isAlive() ? procCpu(e.getKey().pid()) : null;
+                if (c != null)
+                    e.setValue(c);
+            }
+        }
+
+        long[] stop() {
+            sampler.interrupt();
+            long[] total = { 0, 0 };
+            for (long[] c : children.values())
+                total = plus(total, c);
+            return total;
+        }
+    }
+
+    // two consecutive numeric fields, counted after the ")" that closes the command name
+    private static long[] statFields(Path stat, int index) {
+        try {
+            String s = Files.readString(stat);
+            String[] f = s.substring(s.lastIndexOf(')') + 2).split(" ");
+            return new long[] { Long.parseLong(f[index]), Long.parseLong(f[index + 1]) };
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static long[] minus(long[] a, long[] b) {
+        return a == null || b == null ? null : new long[] { a[0] - b[0], a[1] - b[1] };
+    }
+
+    static long[] plus(long[] a, long[] b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        return new long[] { a[0] + b[0], a[1] + b[1] };
+    }
+
+    static String clock(long nanos) {
+        long millis = Math.max(0, nanos) / 1_000_000;
+        return (millis / 60_000) + "m" + String.format(Locale.ROOT, "%d.%03ds", (millis / 1000) % 60, millis % 1000);
+    }
+
+    static String seconds(long nanos) {
+        return nanos < 0 ? "?" : String.format(Locale.ROOT, "%.3fs", Math.max(0, nanos) / 1e9);
+    }
+
+    static void reportStages(PrintStream err, List<String> labels, List<Proc> procs) {
+        for (int i = 0; i < procs.size(); i++) {
+            Proc p = procs.get(i);
+            long[] cpu = p.cpuNanos();
+            err.printf("%3d  %s real  %s user  %s sys  %s%n", i + 1, seconds(p.elapsedNanos()),
+                    cpu == null ? "?" : seconds(cpu[0]), cpu == null ? "?" : seconds(cpu[1]),
+                    i < labels.size() ? labels.get(i) : "");
+        }
+    }
+
+    static void reportTotal(PrintStream err, long real, long[] cpu) {
+        err.println("real\t" + clock(real));
+        err.println("user\t" + (cpu == null ? "?" : clock(cpu[0])));
+        err.println("sys\t" + (cpu == null ? "?" : clock(cpu[1])));
+        err.flush();
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// opt-in JSON-lines execution trace: SHELL_TRACE=<file> writes one record per executed command
+final class Trace {
+    static final int QUEUE_SIZE = 4096;
+    static final LongAdder dropped = new LongAdder();
+
+    static final class Record {
+        final String cmd;
+        final String cwd;
+        final String target;
+        // argv without redirects and the executable each stage resolves to, taken on the session's own thread
+        final List<List<String>> stages;
+        final List<String> exes = new ArrayList<>();
+        final long startMicros = epochMicros();
+        final long startNanos = System.nanoTime();
+        final List<String> pumps = Collections.synchronizedList(new ArrayList<>());
+        long durationMicros;
+        int status;
+
+        Record(String cmd, String cwd, String target) {
+            this.cmd = cmd;
+            this.cwd = cwd;
+            this.target = target;
+            this.stages = Main.splitPipeline(withoutRedirects(cmd));
+            for (List<String> argv : stages) {
+                String name = argv.get(0);
+                exes.add(Main.isBuiltin(name) || name.equals("cat") ? "builtin" : Main.resolveOnPath(name));
+            }
+        }
+
+        void pump(String stream, long bytes) {
+            pumps.add("{\"stream\":" + quote(stream) + ",\"bytes\":" + bytes + "}");
+        }
+    }
+
+    // a writer goes away by itself once its file has seen no record for this long, so nothing has to decide whether
+    // another daemon session is still tracing to it
+    static final long IDLE_MILLIS = 30_000;
+
+    private static final class Sink implements Runnable {
+        final Path path;
+        final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        final Thread thread;
+        volatile boolean closed;
+
+        Sink(Path path) {
+            this.path = path;
+            // shared by every session tracing to this file, so it takes no session's context along
+            this.thread = new Thread(null, this, "trace-writer", 0, false);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try (BufferedWriter w = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long idle = 0;
+                while (!closed || !queue.isEmpty()) {
+                    Record r = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (r == null) {
+                        w.flush();
+                        if ((idle += 100) >= IDLE_MILLIS)
+                            retire();
+                        continue;
+                    }
+                    idle = 0;
+                    w.write(format(r));
+                    w.newLine();
+                    if (queue.isEmpty())
+                        w.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                closed = true;
+                queue.clear();
+            }
+        }
+
+        // under the class lock, so end() either hands its record to this writer before it stops or starts a new one
+        private void retire() {
+            synchronized (Trace.class) {
+                if (queue.isEmpty()) {
+                    sinks.remove(path.toString(), this);
+                    closed = true;
+                }
+            }
+        }
+
+        void close() {
+            closed = true;
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // one writer per trace file; sessions tracing to different files never touch each other's
+    private static final Map<String, Sink> sinks = new HashMap<>();
+    // per thread, so concurrent daemon sessions each trace their own command
+    private static final ThreadLocal<Record> current = new ThreadLocal<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            List<Sink> open;
+            synchronized (Trace.class) {
+                open = new ArrayList<>(sinks.values());
+            }
+            for (Sink s : open)
+                s.close();
+        }));
+    }
+
+    private Trace() {
+    }
+
+    static Record current() {
+        return current.get();
+    }
+
+    static Record begin(String cmd) {
+        String target = Main.env().get("SHELL_TRACE");
+        if (target == null || target.isEmpty()) {
+            current.remove();
+            return null;
+        }
+        Record r = new Record(cmd, Context.current().cwd.toString(), target);
+        current.set(r);
+        return r;
+    }
+
+    // hands the record to the writer thread, which does the formatting; dropped rather than blocking when backed up
+    static void end(Record r, int status) {
+        if (r == null)
+            return;
+        current.remove();
+        r.durationMicros = (System.nanoTime() - r.startNanos) / 1000;
+        r.status = status;
+        boolean queued;
+        synchronized (Trace.class) {
+            Sink s = sinks.get(r.target);
+            if (s == null || s.closed) {
+                s = new Sink(Path.of(r.target));
+                sinks.put(r.target, s);
+            }
+            queued = s.queue.offer(r);
+        }
+        if (!queued)
+            dropped.increment();
+    }
+
+    static String format(Record r) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"start\":").append(r.startMicros)
+                .append(",\"end\":").append(r.startMicros + r.durationMicros)
+                .append(",\"durUs\":").append(r.durationMicros)
+                .append(",\"cwd\":").append(quote(r.cwd))
+                .append(",\"cmd\":").append(quote(r.cmd))
+                .append(",\"stages\":[");
+        for (int i = 0; i < r.stages.size(); i++) {
+            List<String> argv = r.stages.get(i);
+            if (i > 0)
+                sb.append(',');
+            sb.append("{\"argv\":[");
+            for (int j = 0; j < argv.size(); j++) {
+                if (j > 0)
+                    sb.append(',');
+                sb.append(quote(argv.get(j)));
+            }
+            String exe = r.exes.get(i);
+            sb.append("],\"exe\":").append(exe == null ? "null" : quote(exe)).append('}');
+        }
+        sb.append("],\"redirects\":[");
+        appendRedirects(sb, r.cmd);
+        sb.append("],\"status\":").append(r.status).append(",\"pumps\":[");
+        synchronized (r.pumps) {
+            sb.append(String.join(",", r.pumps));
+        }
+        return sb.append("]}").toString();
+    }
+
+    static void appendRedirects(StringBuilder sb, String cmd) {
+        boolean inS = false, inD = false, esc = false, first = true;
+        for (int i = 0; i < cmd.length(); i++) {
+            char c = cmd.charAt(i);
+            if (esc) {
+                esc = false;
+                continue;
+            }
+            if (c == '\\' && !inS) {
+                esc = true;
+            } else if (c == '\'' && !inD) {
+                inS = !inS;
+            } else if (c == '"' && !inS) {
+                inD = !inD;
+            } else if (c == '>' && !inS && !inD) {
+                String op = ">";
+                if (i > 0 && Character.isDigit(cmd.charAt(i - 1)))
+                    op = cmd.charAt(i - 1) + op;
+                if (i + 1 < cmd.length() && cmd.charAt(i + 1) == '>') {
+                    op += ">";
+                    i++;
+                }
+                String target = Main.unquote(cmd.substring(i + 1, skipWord(cmd, i + 1)).trim());
+                if (!first)
+                    sb.append(',');
+                first = false;
+                sb.append("{\"op\":").append(quote(op)).append(",\"target\":").append(quote(target)).append('}');
+            }
+        }
+    }
+
+    // cmd with each unquoted [n]>[>] and the word after it cut out, leaving what the stages actually run
+    static String withoutRedirects(String cmd) {
+        StringBuilder sb = new StringBuilder(cmd.length());
+        boolean inS = false, inD = false, esc = false;
+        for (int i = 0; i < cmd.length(); i++) {
+            char c = cmd.charAt(i);
+            if (esc) {
+                esc = false;
+            } else if (c == '\\' && !inS) {
+                esc = true;
+            } else if (c == '\'' && !inD) {
+                inS = !inS;
+            } else if (c == '"' && !inS) {
+                inD = !inD;
+            } else if (c == '>' && !inS && !inD) {
+                int n = sb.length();
+                if (n > 0 && Character.isDigit(sb.charAt(n - 1)) && (n == 1 || Character.isWhitespace(sb.charAt(n - 2))))
+                    sb.setLength(n - 1);
+                if (i + 1 < cmd.length() && cmd.charAt(i + 1) == '>')
+                    i++;
+                i = skipWord(cmd, i + 1) - 1;
+                sb.append(' ');
+                continue;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    // index just past the word that starts at or after i, quotes and escapes included
+    private static int skipWord(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i)))
+            i++;
+        boolean inS = false, inD = false, esc = false;
+        for (; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (esc)
+                esc = false;
+            else if (c == '\\' && !inS)
+                esc = true;
+            else if (c == '\'' && !inD)
+                inS = !inS;
+            else if (c == '"' && !inS)
+                inD = !inD;
+            else if (!inS && !inD && (Character.isWhitespace(c) || c == '|'))
+                break;
+        }
+        return i;
+    }
+
+    static long epochMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+    }
+
+    static String quote(String s) {
+        if (s == null)
+            return "null";
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
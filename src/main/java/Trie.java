@@ -0,0 +1,57 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// keyed by char rather than a fixed ASCII table, since names on PATH and what the line editor passes through can be
+// any Unicode
+class TrieNode {
+    final Map<Character, TrieNode> children = new HashMap<>();
+    boolean isEndOfWord = false;
+}
+
+class Trie {
+    private final TrieNode root = new TrieNode();
+    private final List<String> words = new ArrayList<>();
+
+    public void insert(String word) {
+        TrieNode cur = root;
+        for (char ch : word.toCharArray())
+            cur = cur.children.computeIfAbsent(ch, k -> new TrieNode());
+        if (!cur.isEndOfWord)
+            words.add(word);
+        cur.isEndOfWord = true;
+    }
+
+    public List<String> words() {
+        return words;
+    }
+
+    public String search(String word) {
+        StringBuilder result = new StringBuilder();
+        TrieNode cur = find(word);
+        if (cur == null)
+            return "";
+        while (!cur.isEndOfWord) {
+            if (cur.children.size() != 1)
+                return "";
+            Map.Entry<Character, TrieNode> next = cur.children.entrySet().iterator().next();
+            result.append(next.getKey().charValue());
+            cur = next.getValue();
+        }
+        return result.toString();
+    }
+
+    // true when nothing longer starts with word, including when nothing starts with it at all
+    public boolean checkComplete(String word) {
+        TrieNode cur = find(word);
+        return cur == null || cur.children.isEmpty();
+    }
+
+    private TrieNode find(String word) {
+        TrieNode cur = root;
+        for (int i = 0; i < word.length() && cur != null; i++)
+            cur = cur.children.get(word.charAt(i));
+        return cur;
+    }
+}
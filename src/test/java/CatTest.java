@@ -0,0 +1,40 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+
+class CatTest {
+    private static String run(String script) throws Exception {
+        ShellProcess sh = new ShellProcess();
+        try {
+            Files.writeString(sh.dir.resolve("f.txt"), "alpha\nbeta\n");
+            return sh.run(script + "exit\n").output;
+        } finally {
+            sh.delete();
+        }
+    }
+
+    @Test
+    void readsAFifo() throws Exception {
+        String out = run("cat <(echo one)\necho status $?\n");
+        assertTrue(out.contains("one\n"), out);
+        assertTrue(out.contains("status 0"), out);
+    }
+
+    @Test
+    void readsDevStdinInAPipeline() throws Exception {
+        String out = run("echo two | cat /dev/stdin\n");
+        assertTrue(out.contains("two\n"), out);
+    }
+
+    @Test
+    void passesOptionsToTheSystemCat() throws Exception {
+        String out = run("cat -n f.txt\ncat -- f.txt\necho x | cat -n f.txt -\ncat -A f.txt > g.txt\ncat g.txt\n");
+        assertTrue(out.contains("     1\talpha\n     2\tbeta\n"), out);
+        assertTrue(out.contains("$ cat -- f.txt\nalpha\nbeta\n"), out);
+        assertTrue(out.contains("     3\tx\n"), out);
+        assertTrue(out.contains("alpha$\nbeta$\n"), out);
+        assertEquals(-1, out.indexOf("No such file"), out);
+    }
+}
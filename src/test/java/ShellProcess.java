@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// drives Main in a child JVM the way a script piped into it would: the script goes to its stdin, and its stdout and
+// stderr come back as one string together with its exit status. Each shell gets a fresh temp directory as its cwd
+final class ShellProcess {
+    static final long TIMEOUT_SECONDS = 30;
+
+    final Path dir;
+    int status;
+    String output;
+
+    ShellProcess() throws IOException {
+        this.dir = Files.createTempDirectory("shelltest");
+    }
+
+    ShellProcess run(String script) throws IOException, InterruptedException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        // output goes to a file, so a shell that hangs can't block the test on reading it
+        Path log = Files.createTempFile("shelltest", ".out");
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "Main")
+                .directory(dir.toFile()).redirectErrorStream(true).redirectOutput(log.toFile());
+        pb.environment().put("SHELLRC", "");
+        pb.environment().remove("HISTFILE");
+        Process p = pb.start();
+        p.getOutputStream().write(script.getBytes(StandardCharsets.UTF_8));
+        p.getOutputStream().close();
+        try {
+            if (!p.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                p.destroyForcibly();
+                throw new AssertionError("shell did not exit within " + TIMEOUT_SECONDS + "s:\n" + script);
+            }
+            status = p.exitValue();
+            output = Files.readString(log, StandardCharsets.UTF_8);
+        } finally {
+            Files.delete(log);
+        }
+        return this;
+    }
+
+    void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+}
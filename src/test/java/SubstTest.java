@@ -0,0 +1,43 @@
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+
+class SubstTest {
+    private static String run(String script) throws Exception {
+        ShellProcess sh = new ShellProcess();
+        try {
+            Files.writeString(sh.dir.resolve("f.txt"), "a   b\nc\n");
+            return sh.run(script + "exit\n").output;
+        } finally {
+            sh.delete();
+        }
+    }
+
+    @Test
+    void runsLoopsInsideASubstitution() throws Exception {
+        String out = run("echo [$(for i in 1 2 3; do echo $i; done)]\necho [$(if true; then echo yes; fi)]\n");
+        assertTrue(out.contains("[1 2 3]"), out);
+        assertTrue(out.contains("[yes]"), out);
+    }
+
+    @Test
+    void appliesRedirectsInsideASubstitution() throws Exception {
+        String out = run("echo [$(echo hi > g.txt)]\ncat g.txt\n");
+        assertTrue(out.contains("[]"), out);
+        assertTrue(out.contains("$ cat g.txt\nhi\n"), out);
+    }
+
+    @Test
+    void keepsSpacesInAnAssignment() throws Exception {
+        String out = run("x=$(cat f.txt)\necho \"[$x]\"\n");
+        assertTrue(out.contains("[a   b\nc]"), out);
+    }
+
+    @Test
+    void runsLoopsInsideAProcessSubstitution() throws Exception {
+        String out = run("cat <(for i in x y; do echo $i; done)\necho x > >(cat > h.txt)\nsleep 0.3\ncat h.txt\n");
+        assertTrue(out.contains("x\ny\n"), out);
+        assertTrue(out.contains("$ cat h.txt\nx\n"), out);
+    }
+}
@@ -0,0 +1,27 @@
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TeeTest {
+    private static String run(String script) throws Exception {
+        ShellProcess sh = new ShellProcess();
+        try {
+            return sh.run(script + "exit\n").output;
+        } finally {
+            sh.delete();
+        }
+    }
+
+    @Test
+    void copiesToStdoutAndFiles() throws Exception {
+        String out = run("echo one | tee a.txt\necho two | tee -a a.txt b.txt > /dev/null\ncat a.txt b.txt\n");
+        assertTrue(out.contains("$ cat a.txt b.txt\none\ntwo\ntwo\n"), out);
+    }
+
+    @Test
+    void passesOtherOptionsToTheSystemTee() throws Exception {
+        String out = run("echo three | tee -p c.txt\ncat c.txt\necho x | tee -c d.txt\necho status $?\n");
+        assertTrue(out.contains("$ cat c.txt\nthree\n"), out);
+        assertTrue(out.contains("status 1"), out);
+    }
+}
@@ -0,0 +1,31 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TrieTest {
+    @Test
+    void completesNonAsciiNames() {
+        Trie t = new Trie();
+        t.insert("caf\u00e9");
+        t.insert("ls");
+        assertEquals("\u00e9", t.search("caf"));
+        assertEquals("", t.search("\u00e9"));
+        assertTrue(t.checkComplete("caf\u00e9"));
+        assertTrue(t.checkComplete("\u00fc"));
+        assertFalse(t.checkComplete("ca"));
+    }
+
+    @Test
+    void tabAfterNonAsciiPrefixKeepsTheShellRunning() throws Exception {
+        ShellProcess sh = new ShellProcess().run("\u00e9\t\necho still here\nexit 3\n");
+        try {
+            assertFalse(sh.output.contains("Exception"), sh.output);
+            assertTrue(sh.output.contains("still here"), sh.output);
+            assertEquals(3, sh.status);
+        } finally {
+            sh.delete();
+        }
+    }
+}